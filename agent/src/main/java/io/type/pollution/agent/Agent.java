@@ -1,6 +1,7 @@
 package io.type.pollution.agent;
 
 import net.bytebuddy.agent.builder.AgentBuilder;
+import net.bytebuddy.agent.builder.ResettableClassFileTransformer;
 import net.bytebuddy.asm.AsmVisitorWrapper;
 import net.bytebuddy.asm.TypeConstantAdjustment;
 import net.bytebuddy.description.field.FieldDescription;
@@ -14,15 +15,17 @@ import net.bytebuddy.pool.TypePool;
 
 import java.io.IOException;
 import java.lang.instrument.Instrumentation;
-import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Locale;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static net.bytebuddy.matcher.ElementMatchers.*;
 
@@ -31,19 +34,91 @@ public class Agent {
     private static final boolean ENABLE_FULL_STACK_TRACES = Boolean.getBoolean("io.type.pollution.full.traces");
 
     private static final String FILE_DUMP = System.getProperty("io.type.pollution.file");
+    private static final long FILE_ROTATE_BYTES = Long.getLong("io.type.pollution.file.rotate.size", 0);
+    private static final long FILE_ROTATE_SECS = Long.getLong("io.type.pollution.file.rotate.secs", 0);
+    private static final int FILE_ROTATE_KEEP = Integer.getInteger("io.type.pollution.file.rotate.keep", 5);
+    private static final int FILE_QUEUE_CAPACITY = Integer.getInteger("io.type.pollution.file.queue", 4);
+    private static final long FILE_SHUTDOWN_TIMEOUT_MS = Long.getLong("io.type.pollution.file.shutdown.ms", 1000);
+    private static final boolean BINARY_FILE_DUMP = FILE_DUMP != null && "binary".equals(System.getProperty("io.type.pollution.file.format"));
 
+    private static final String FLAME_GRAPH_FILE = System.getProperty("io.type.pollution.flamegraph");
     private static final int FULL_STACK_TRACES_SAMPLING_PERIOD_MS = Integer.getInteger("io.type.pollution.full.traces.ms", 0);
     static final int FULL_STACK_TRACES_LIMIT = Integer.getInteger("io.type.pollution.full.traces.limit", 20);
-    private static final int TYPE_UPDATE_COUNT_MIN = Integer.getInteger("io.type.pollution.count.min", 10);
-    private static final int TYPE_MISS_COUNT_MIN = Integer.getInteger("io.type.pollution.miss.count.min", 1);
+    // these can be changed at runtime, via JMX
+    private static volatile int TYPE_UPDATE_COUNT_MIN = Integer.getInteger("io.type.pollution.count.min", 10);
+    private static final int THREAD_PAIRS_LIMIT = Integer.getInteger("io.type.pollution.thread.pairs.limit", 10);
+    private static volatile int TYPE_MISS_COUNT_MIN = Integer.getInteger("io.type.pollution.miss.count.min", 1);
     private static final int TRACING_DELAY_SECS = Integer.getInteger("io.type.pollution.delay", 0);
     private static final Long REPORT_INTERVAL_SECS = Long.getLong("io.type.pollution.report.interval");
+    private static final int REPORT_WINDOWS = Integer.getInteger("io.type.pollution.report.windows", 5);
+    // just with periodic reports: each report closes a window
+    static final boolean RATE_WINDOWS = REPORT_INTERVAL_SECS != null && REPORT_WINDOWS > 0;
+    private static final int REPORT_TOP = Integer.getInteger("io.type.pollution.report.top", 0);
+    private static final boolean COST_ORDER = "cost".equals(System.getProperty("io.type.pollution.report.order"));
+    static final int REPORT_SITES = Integer.getInteger("io.type.pollution.report.sites", 0);
+    private static final int COST_SITES = Integer.getInteger("io.type.pollution.report.cost.sites", 10);
+    private static final boolean MEGAMORPHIC_COST_SITES = Boolean.getBoolean("io.type.pollution.report.cost.megamorphic");
+    static final boolean PARALLEL_SNAPSHOTS = Boolean.getBoolean("io.type.pollution.report.parallel");
+    private static final long ATTACH_DURATION_SECS = 60;
     private static final boolean ENABLE_LAMBDA_INSTRUMENTATION = Boolean.getBoolean("io.type.pollution.lambda");
+    static final boolean EXACT_COUNT = Boolean.getBoolean("io.type.pollution.count.exact");
+    static final int SAMPLING_PERIOD = Math.max(1, Integer.getInteger("io.type.pollution.sampling", 1));
+    static final boolean ASYNC_EVENTS = Boolean.getBoolean("io.type.pollution.async");
+    // this MUST be a power of 2
+    static final int EVENTS_BUFFER_CAPACITY = ceilingPowerOfTwo(Integer.getInteger("io.type.pollution.async.buffer", 4096));
+    private static final long EVENTS_DRAIN_PERIOD_MS = Long.getLong("io.type.pollution.async.drain.ms", 10);
+    static final int BOUNDED_TRACES_MAX = Integer.getInteger("io.type.pollution.bounded.traces", 0);
+    static final long BOUNDED_TRACES_TOTAL = Long.getLong("io.type.pollution.bounded.traces.total", 0);
+    static final boolean BOUNDED_TRACES = BOUNDED_TRACES_MAX > 0 || BOUNDED_TRACES_TOTAL > 0;
+    static final int BOUNDED_TOP = Integer.getInteger("io.type.pollution.bounded.top", 16);
+    // this MUST be a power of 2
+    static final int BOUNDED_SKETCH_WIDTH = ceilingPowerOfTwo(Integer.getInteger("io.type.pollution.bounded.sketch.width", 16384));
+    static final int BOUNDED_FULL_STACK_TRACES = Integer.getInteger("io.type.pollution.bounded.full.traces", 8);
+    private static final boolean JMX = Boolean.getBoolean("io.type.pollution.jmx");
+    private static final Integer METRICS_PORT = Integer.getInteger("io.type.pollution.metrics.port");
+    private static final int METRICS_TOP_SITES = Integer.getInteger("io.type.pollution.metrics.top.sites", 20);
+    static final boolean JFR_EVENTS = Boolean.getBoolean("io.type.pollution.jfr") && isJfrAvailable();
+    static final long JFR_THROTTLE_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("io.type.pollution.jfr.throttle.ms", 10));
+    // the type check events would be committed by the aggregator thread
+    static final boolean JFR_TYPE_CHECK_EVENTS = JFR_EVENTS && !ASYNC_EVENTS;
 
-    public static void premain(String agentArgs, Instrumentation inst) {
-        if (ENABLE_FULL_STACK_TRACES) {
-            TraceInstanceOf.startMetronome(FULL_STACK_TRACES_SAMPLING_PERIOD_MS);
+    static int typeUpdateCountMin() {
+        return TYPE_UPDATE_COUNT_MIN;
+    }
+
+    static void typeUpdateCountMin(int countMin) {
+        TYPE_UPDATE_COUNT_MIN = countMin;
+    }
+
+    static int typeMissCountMin() {
+        return TYPE_MISS_COUNT_MIN;
+    }
+
+    static void typeMissCountMin(int missCountMin) {
+        TYPE_MISS_COUNT_MIN = missCountMin;
+    }
+
+    private static boolean isJfrAvailable() {
+        try {
+            Class.forName("jdk.jfr.FlightRecorder", false, Agent.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            System.err.println("WARNING: io.type.pollution.jfr requires JFR: disabled");
+            return false;
+        }
+    }
+
+    private static int ceilingPowerOfTwo(int value) {
+        if (value <= 1) {
+            return 1;
         }
+        return Integer.highestOneBit(value - 1) << 1;
+    }
+
+    public static void premain(String agentArgs, Instrumentation inst) {
+        // never released: an attach would install a second transformer and end this recording
+        ATTACHED.set(true);
+        startCollectors();
         TraceInstanceOf.startTracing(TRACING_DELAY_SECS);
 
         if (REPORT_INTERVAL_SECS != null) {
@@ -57,16 +132,130 @@ public class Agent {
 
         Runtime.getRuntime().addShutdownHook(new Thread(Agent::printFinalReport));
 
-        final String[] agentArgsValues = agentArgs == null ? null : agentArgs.split(",");
+        installTransformer(packagePrefixesOf(agentArgs), ENABLE_LAMBDA_INSTRUMENTATION, inst);
+    }
+
+    private static final AtomicBoolean ATTACHED = new AtomicBoolean();
+
+    /**
+     * Dynamic attach: it instruments the already loaded (and the new) classes, records for {@code duration=<seconds>}
+     * (in the agent arguments, default {@link #ATTACH_DURATION_SECS}), prints the final report and restores the
+     * original byte-code of the instrumented classes.
+     * <p>
+     * It's refused while another attach is recording or if the agent has been loaded on startup.
+     */
+    public static void agentmain(String agentArgs, Instrumentation inst) {
+        if (!ATTACHED.compareAndSet(false, true)) {
+            System.err.println("ERROR: Type Pollution Agent is already recording: attach ignored");
+            return;
+        }
+        final long durationSecs = durationOf(agentArgs);
+        startCollectors();
+        synchronized (Agent.class) {
+            LAST_REPORT = false;
+            // each recording reports just its own type checks
+            resetCounters();
+        }
+        // lambda instrumentation cannot be reset
+        final ResettableClassFileTransformer transformer = installTransformer(packagePrefixesOf(agentArgs), false, inst);
+        final Thread finalReportOnShutdown = new Thread(Agent::printFinalReport);
+        Runtime.getRuntime().addShutdownHook(finalReportOnShutdown);
+        TraceInstanceOf.startTracing(0);
+        final Thread recording = new Thread(() -> {
+            try {
+                TimeUnit.SECONDS.sleep(durationSecs);
+            } catch (InterruptedException ignore) {
+                // let's stop earlier
+            }
+            try {
+                Runtime.getRuntime().removeShutdownHook(finalReportOnShutdown);
+            } catch (IllegalStateException shuttingDown) {
+                // the shutdown hook is taking care of the report
+                return;
+            }
+            printFinalReport();
+            // back to the original byte-code, and no more probes for the JIT
+            transformer.reset(inst, AgentBuilder.RedefinitionStrategy.RETRANSFORMATION);
+            ATTACHED.set(false);
+        });
+        recording.setName("type-pollution-attach-recording");
+        recording.setDaemon(true);
+        recording.start();
+    }
+
+    private static final AtomicBoolean COLLECTORS_STARTED = new AtomicBoolean();
+
+    private static void startCollectors() {
+        if (!COLLECTORS_STARTED.compareAndSet(false, true)) {
+            return;
+        }
+        if (ENABLE_FULL_STACK_TRACES) {
+            if (ASYNC_EVENTS) {
+                // the stack traces would be the aggregator ones
+                System.err.println("WARNING: full stack traces are not supported with io.type.pollution.async: disabled");
+            } else {
+                TraceInstanceOf.startMetronome(FULL_STACK_TRACES_SAMPLING_PERIOD_MS);
+            }
+        }
+        if (FLAME_GRAPH_FILE != null && (!ENABLE_FULL_STACK_TRACES || ASYNC_EVENTS)) {
+            System.err.println("WARNING: io.type.pollution.flamegraph requires io.type.pollution.full.traces (and no io.type.pollution.async): disabled");
+        }
+        if (ASYNC_EVENTS) {
+            TraceEvents.startAggregator(EVENTS_DRAIN_PERIOD_MS);
+        }
+        if (JFR_EVENTS) {
+            if (ASYNC_EVENTS) {
+                System.err.println("WARNING: JFR type check events are not supported with io.type.pollution.async: just the periodic counts are committed");
+            }
+            TraceJfr.register();
+        }
+        if (JMX) {
+            TypePollutionManagement.register();
+        }
+        if (METRICS_PORT != null) {
+            TraceMetricsServer.start(METRICS_PORT, METRICS_TOP_SITES);
+        }
+    }
+
+    /**
+     * The agent arguments are a comma separated list of package prefixes and {@code key=value} options.
+     */
+    private static String[] packagePrefixesOf(String agentArgs) {
+        if (agentArgs == null || agentArgs.isEmpty()) {
+            return null;
+        }
+        return Arrays.stream(agentArgs.split(","))
+                .filter(arg -> !arg.isEmpty() && arg.indexOf('=') < 0)
+                .toArray(String[]::new);
+    }
+
+    private static long durationOf(String agentArgs) {
+        if (agentArgs != null) {
+            for (String arg : agentArgs.split(",")) {
+                if (arg.startsWith("duration=")) {
+                    try {
+                        return Long.parseLong(arg.substring("duration=".length()));
+                    } catch (NumberFormatException e) {
+                        System.err.println("ERROR: invalid Type Pollution Agent " + arg + ": using the default one");
+                    }
+                }
+            }
+        }
+        return ATTACH_DURATION_SECS;
+    }
+
+    private static ResettableClassFileTransformer installTransformer(String[] packagePrefixes, boolean lambdaInstrumentation, Instrumentation inst) {
         ElementMatcher.Junction<? super TypeDescription> acceptedTypes = any();
-        if (agentArgsValues != null && agentArgsValues.length > 0) {
-            for (String startWith : agentArgsValues)
+        if (packagePrefixes != null && packagePrefixes.length > 0) {
+            for (String startWith : packagePrefixes)
                 acceptedTypes = acceptedTypes.and(nameStartsWith(startWith));
         }
-        new AgentBuilder.Default()
+        return new AgentBuilder.Default()
                 .with(AgentBuilder.Listener.StreamWriting.toSystemError().withErrorsOnly())
                 .with(AgentBuilder.RedefinitionStrategy.RETRANSFORMATION)
-                .with(ENABLE_LAMBDA_INSTRUMENTATION ?
+                // just ASM visitors: no need to rebase, which would fail to retransform some already loaded classes
+                .with(AgentBuilder.TypeStrategy.Default.DECORATE)
+                .with(lambdaInstrumentation ?
                         AgentBuilder.LambdaInstrumentationStrategy.ENABLED :
                         AgentBuilder.LambdaInstrumentationStrategy.DISABLED)
                 .with(AgentBuilder.InitializationStrategy.NoOp.INSTANCE)
@@ -100,26 +289,119 @@ public class Agent {
                                                                            FieldList<FieldDescription.InDefinedShape> fields,
                                                                            MethodList<?> methods,
                                                                            int writerFlags, int readerFlags) {
-                                return new ByteBuddyUtils.ByteBuddyTypePollutionClassVisitor(net.bytebuddy.jar.asm.Opcodes.ASM9, classVisitor);
+                                return new ByteBuddyUtils.ByteBuddyTypePollutionClassVisitor(net.bytebuddy.jar.asm.Opcodes.ASM9, classVisitor, typePool);
                             }
                         })).installOn(inst);
     }
 
     private static void printFinalReport() {
-        printReport(true);
+        // don't stall the JVM shutdown for too long: waiting a running report, building, submitting and writing the
+        // final one share the same deadline
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(FILE_SHUTDOWN_TIMEOUT_MS);
+        // relink the probes as no-op: the shutdown hooks of the application won't pay tracing anymore
+        TraceInstanceOf.stopTracing();
+        final Thread finalReport = new Thread(() -> {
+            final TraceReportWriter writer = printReport(true, deadline);
+            if (writer != null) {
+                writer.awaitClose(remainingMs(deadline));
+            }
+        });
+        finalReport.setName("type-pollution-final-report");
+        finalReport.setDaemon(true);
+        finalReport.start();
+        try {
+            if (FILE_DUMP == null) {
+                // the standard output is not bounded
+                finalReport.join();
+            } else {
+                finalReport.join(Math.max(1, remainingMs(deadline)));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (finalReport.isAlive()) {
+            System.err.println("WARNING: the final Type Pollution Statistics report is not completely written to " + FILE_DUMP
+                    + " within " + FILE_SHUTDOWN_TIMEOUT_MS + " ms");
+        }
+    }
+
+    private static long remainingMs(long deadline) {
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
     }
 
     private static void printLiveReport() {
-        printReport(false);
+        printReport(false, 0);
     }
 
     private static final DateTimeFormatter REPORT_TIMESTAMP = DateTimeFormatter.ofPattern("yyyy/MM/dd HH:mm:ss");
     private static FileChannel DUMP;
-    private static ByteBuffer DUMP_TMP_BUFFER;
+    private static TraceReportWriter REPORT_WRITER;
     private static boolean DUMP_ERROR;
+    private static boolean FLAME_GRAPH_ERROR;
+    private static TraceDumpWriter DUMP_WRITER;
 
     private static boolean LAST_REPORT = false;
 
+    private static final TraceWindows TYPE_POLLUTION_WINDOWS = !RATE_WINDOWS ? null :
+            new TraceWindows(TraceInstanceOf::forEachChangedTypePollutionCounter, REPORT_WINDOWS);
+    private static final TraceWindows MISS_WINDOWS = !RATE_WINDOWS ? null :
+            new TraceWindows(TraceInstanceOf::forEachChangedMissCounter, REPORT_WINDOWS);
+
+    /**
+     * Resets the counters along with their windows.
+     */
+    static void resetCounters() {
+        synchronized (Agent.class) {
+            TraceInstanceOf.resetCounters();
+            if (TYPE_POLLUTION_WINDOWS != null) {
+                TYPE_POLLUTION_WINDOWS.clear();
+                MISS_WINDOWS.clear();
+            }
+        }
+    }
+
+    private static String rateOf(double rate) {
+        return (TypeCheckSampler.isEnabled() ? "~" : "") + Math.round(rate) + "/s";
+    }
+
+    private static StringBuilder appendTrend(StringBuilder report, double[] rates) {
+        for (int i = 0; i < rates.length; i++) {
+            if (i > 0) {
+                report.append(' ');
+            }
+            report.append(rateOf(rates[i]));
+        }
+        return report;
+    }
+
+    private static CharSequence ratesReportOf(TraceWindows windows, int minWindowCount) {
+        windows.roll();
+        final Collection<TraceWindows.ClassRates> classRates = windows.orderedClassRates(minWindowCount);
+        if (classRates.isEmpty()) {
+            return "";
+        }
+        StringBuilder report = new StringBuilder();
+        report.append("--------------------------\n");
+        report.append("Window:\t").append(String.format(Locale.ROOT, "%.1f", windows.latestWindowSecs())).append(" s (trend of the last ")
+                .append(windows.size()).append(" windows, oldest first)\n");
+        int rowId = 0;
+        for (TraceWindows.ClassRates rates : classRates) {
+            report.append("--------------------------\n");
+            rowId++;
+            report.append(rowId).append(":\t").append(rates.clazz.getName()).append('\n');
+            report.append("Rate:\t").append(rateOf(rates.latestRate())).append('\n');
+            appendTrend(report.append("Trend:\t"), rates.rates).append('\n');
+            report.append("Traces:\n");
+            for (TraceWindows.ClassRates.TraceRates trace : rates.traces) {
+                report.append("\t").append(trace.trace).append('\n');
+                report.append("\t\tclass: ").append(trace.interfaceClazz.getName()).append('\n');
+                report.append("\t\trate: ").append(rateOf(trace.rates[trace.rates.length - 1])).append('\n');
+                appendTrend(report.append("\t\ttrend: "), trace.rates).append('\n');
+            }
+        }
+        return report;
+    }
+
     private static CharSequence reportOf(Collection<TraceInstanceOf.TraceCounter.Snapshot> counters) {
         if (counters.isEmpty()) {
             return "";
@@ -130,7 +412,18 @@ public class Agent {
             report.append("--------------------------\n");
             rowId++;
             report.append(rowId).append(":\t").append(counter.clazz.getName()).append('\n');
-            report.append("Count:\t").append(counter.updateCount).append('\n');
+            if (TypeCheckSampler.isEnabled()) {
+                report.append("Count:\t~").append(counter.updateCount)
+                        .append(" (95% CI: +/- ").append(TypeCheckSampler.confidence95(counter.samples)).append(")\n");
+            } else {
+                report.append("Count:\t").append(counter.updateCount).append('\n');
+            }
+            if (counter.threadPairs != null) {
+                report.append("Cross-thread:\t").append(counter.crossThreadUpdateCount).append('\n');
+            }
+            if (counter.overflowUpdateCount > 0) {
+                report.append("Overflow:\t").append(counter.overflowUpdateCount).append(" (traces over the bounded ones)\n");
+            }
             report.append("Types:\n");
             for (Class<?> seen : counter.seen) {
                 report.append("\t").append(seen.getName()).append('\n');
@@ -138,16 +431,31 @@ public class Agent {
             report.append("Traces:\n");
             for (TraceInstanceOf.TraceCounter.Snapshot.TraceSnapshot stack : counter.traces) {
                 report.append("\t").append(stack.trace).append('\n');
+                report.append("\t\treceivers: ").append(receiversOf(stack.receivers)).append('\n');
                 for (TraceInstanceOf.TraceCounter.Snapshot.TraceSnapshot.ClassCount count : stack.interfaceSeenCounters) {
                     report.append("\t\tclass: ").append(count.interfaceClazz.getName()).append('\n');
-                    report.append("\t\tcount: ").append(count.count).append('\n');
+                    report.append("\t\tcount: ").append(count.approximate ? "<= " : "").append(TypeCheckSampler.isEnabled() ? "~" : "")
+                            .append(count.count).append('\n');
+                    if (counter.threadPairs != null) {
+                        report.append("\t\tcross-thread: ").append(count.crossThreadCount).append('\n');
+                    }
                 }
             }
-            if (ENABLE_FULL_STACK_TRACES) {
+            if (counter.threadPairs != null && counter.threadPairs.length > 0) {
+                report.append("Thread Pairs:\n");
+                final int pairs = Math.min(counter.threadPairs.length, THREAD_PAIRS_LIMIT);
+                for (int i = 0; i < pairs; i++) {
+                    final TraceInstanceOf.TraceCounter.Snapshot.ThreadPairCount pair = counter.threadPairs[i];
+                    report.append("\t").append(pair.fromThread).append(" -> ").append(pair.toThread)
+                            .append(": ").append(pair.count).append('\n');
+                }
+            }
+            if (ENABLE_FULL_STACK_TRACES && !ASYNC_EVENTS) {
                 report.append("Full Traces:\n");
-                for (StackTraceElement[] fullFrames : counter.fullStackFrames) {
+                for (int i = 0; i < counter.fullStackFrames.length; i++) {
                     report.append("\t--------------------------\n");
-                    for (StackTraceElement frame : fullFrames) {
+                    report.append("\tsamples: ").append(counter.fullStackFrameSamples[i]).append('\n');
+                    for (StackTraceElement frame : counter.fullStackFrames[i]) {
                         report.append("\t").append(frame).append('\n');
                     }
                 }
@@ -156,71 +464,248 @@ public class Agent {
         return report;
     }
 
-    private static void printReport(boolean last) {
+    private static CharSequence sitesReportOf(Collection<TypeCheckCost.SiteCost> siteCosts) {
+        if (REPORT_SITES <= 0) {
+            return "";
+        }
+        final StringBuilder report = new StringBuilder();
+        final String estimated = TypeCheckSampler.isEnabled() ? "~" : "";
+        int rowId = 0;
+        for (TypeCheckSite site : TypeCheckSite.orderedSites(siteCosts, COST_ORDER, REPORT_SITES)) {
+            report.append("--------------------------\n");
+            rowId++;
+            report.append(rowId).append(":\t").append(site.trace).append('\n');
+            report.append("Method:\t").append(site.method).append('\n');
+            report.append("Receivers:\t").append(receiversOf(site.receivers)).append('\n');
+            report.append("Invalidations:\t").append(estimated).append(site.invalidations)
+                    .append(" (cross-thread: ").append(site.crossThreadInvalidations).append(")\n");
+            report.append("Misses:\t").append(estimated).append(site.misses).append('\n');
+            report.append("Cycles:\t").append(site.approximate ? "<= " : "").append('~').append(site.cycles).append('\n');
+            report.append("Checks:\n");
+            for (TypeCheckCost.SiteCost check : site.checks) {
+                report.append("\t").append(check.clazz.getName()).append(" -> ").append(check.interfaceClazz.getName()).append('\n');
+                if (check.invalidations > 0) {
+                    report.append("\t\tinvalidations: ").append(check.approximate ? "<= " : "").append(estimated)
+                            .append(check.invalidations).append('\n');
+                    report.append("\t\tcross-thread: ").append(check.crossThreadInvalidations).append('\n');
+                }
+                if (check.misses > 0) {
+                    report.append("\t\tmisses: ").append(check.approximate ? "<= " : "").append(estimated)
+                            .append(check.misses).append('\n');
+                }
+            }
+        }
+        return report;
+    }
+
+    private static CharSequence costReportOf(Collection<TypeCheckCost.SiteCost> siteCosts) {
+        if (COST_SITES <= 0) {
+            return "";
+        }
+        final StringBuilder report = new StringBuilder();
+        final String estimated = TypeCheckSampler.isEnabled() ? "~" : "";
+        int rowId = 0;
+        for (TypeCheckCost.SiteCost site : TypeCheckCost.orderedSiteCosts(siteCosts,
+                MEGAMORPHIC_COST_SITES ? ReceiverProfiles.MEGAMORPHIC : 0, COST_SITES)) {
+            report.append("--------------------------\n");
+            rowId++;
+            report.append(rowId).append(":\t").append(site.trace).append('\n');
+            report.append("Check:\t").append(site.clazz.getName()).append(" -> ").append(site.interfaceClazz.getName()).append('\n');
+            report.append("Cycles:\t").append(site.approximate ? "<= " : "").append('~').append(site.cycles()).append('\n');
+            report.append("Receivers:\t").append(receiversOf(site.receivers)).append('\n');
+            report.append("Secondary supers:\t").append(site.secondarySupers);
+            if (site.position > 0) {
+                report.append(" (interface at ").append(site.position).append(')');
+            }
+            report.append('\n');
+            if (site.invalidations > 0) {
+                report.append("Invalidations:\t").append(estimated).append(site.invalidations)
+                        .append(" (cross-thread: ").append(site.crossThreadInvalidations).append(")\n");
+            }
+            if (site.misses > 0) {
+                report.append("Misses:\t").append(estimated).append(site.misses).append('\n');
+            }
+        }
+        return report;
+    }
+
+    private static String receiversOf(int receivers) {
+        final String state = ReceiverProfiles.stateOf(receivers);
+        if (receivers >= ReceiverProfiles.MEGAMORPHIC) {
+            return state + " (slow path after C2 too)";
+        }
+        if (receivers > 0) {
+            return state + " (C2 can fold it)";
+        }
+        return state;
+    }
+
+    private static int reportLimit() {
+        return REPORT_TOP > 0 ? REPORT_TOP : Integer.MAX_VALUE;
+    }
+
+    /**
+     * @param deadline the {@link System#nanoTime()} to submit a last report within
+     * @return the writer which is closing the file, if a last report has been submitted to it
+     */
+    private static synchronized TraceReportWriter printReport(boolean last, long deadline) {
         if (LAST_REPORT) {
-            return;
+            return null;
         }
         if (last) {
             LAST_REPORT = true;
         }
+        Collection<TraceInstanceOf.TraceCounter.Snapshot> typePollutionCounters =
+                TraceInstanceOf.orderedTypePollutionCountersSnapshot(TYPE_UPDATE_COUNT_MIN, reportLimit());
+        Collection<TraceInstanceOf.TraceCounter.Snapshot> missCounters =
+                TraceInstanceOf.orderedMissCountersSnapshot(TYPE_MISS_COUNT_MIN, reportLimit());
+        if (COST_ORDER) {
+            typePollutionCounters = TypeCheckCost.orderedByCycles(typePollutionCounters, false);
+            missCounters = TypeCheckCost.orderedByCycles(missCounters, true);
+        }
+        if (FLAME_GRAPH_FILE != null && ENABLE_FULL_STACK_TRACES && !ASYNC_EVENTS && !typePollutionCounters.isEmpty()) {
+            writeFlameGraph();
+        }
+        if (BINARY_FILE_DUMP && dumpBinary(last, typePollutionCounters, missCounters)) {
+            return null;
+        }
         StringBuilder summary = new StringBuilder("--------------------------\nType Check Statistics:\n--------------------------\n");
         summary.append("Date:\t").append(REPORT_TIMESTAMP.format(LocalDateTime.now())).append('\n');
         summary.append("Last:\t").append(last).append('\n');
-        CharSequence typePollutionReport = reportOf(TraceInstanceOf.orderedTypePollutionCountersSnapshot(TYPE_UPDATE_COUNT_MIN));
+        summary.append("Sites:\t").append(ByteBuddyUtils.instrumentedSites()).append(" instrumented, ")
+                .append(ByteBuddyUtils.skippedSites()).append(" skipped (cannot pollute)\n");
+        if (TypeCheckSampler.isEnabled()) {
+            summary.append("Sampling:\t1/").append(SAMPLING_PERIOD).append('\n');
+        }
+        if (ASYNC_EVENTS) {
+            summary.append("Dropped:\t").append(TraceEvents.drops()).append('\n');
+        }
+        CharSequence typePollutionReport = reportOf(typePollutionCounters);
         if (typePollutionReport.length() > 0) {
             summary.append("--------------------------\nType Pollution:\n");
             summary.append(typePollutionReport);
         }
-        CharSequence missReport = reportOf(TraceInstanceOf.orderedMissCountersSnapshot(TYPE_MISS_COUNT_MIN));
+        CharSequence missReport = reportOf(missCounters);
         if (missReport.length() > 0) {
             summary.append("--------------------------\nMiss:\n");
             summary.append(missReport);
         }
-        boolean emptyReports = typePollutionReport.length() == 0 && missReport.length() == 0;
-        if (!emptyReports) {
-            summary.append("--------------------------\n");
-            if (DUMP_ERROR || FILE_DUMP == null) {
-                System.out.println(summary);
-                return;
+        final Collection<TypeCheckCost.SiteCost> siteCosts;
+        if (REPORT_SITES > 0) {
+            // the site totals include the types below the reporting thresholds (or out of the top N) too
+            siteCosts = TraceInstanceOf.siteCosts();
+        } else if (COST_SITES > 0) {
+            siteCosts = TypeCheckCost.siteCostsOf(typePollutionCounters, missCounters);
+        } else {
+            siteCosts = null;
+        }
+        CharSequence sitesReport = sitesReportOf(siteCosts);
+        if (sitesReport.length() > 0) {
+            summary.append("--------------------------\nType Check Sites:\n");
+            summary.append(sitesReport);
+        }
+        CharSequence costReport = costReportOf(siteCosts);
+        if (costReport.length() > 0) {
+            summary.append("--------------------------\nCostliest Sites:\n");
+            summary.append(costReport);
+        }
+        if (TYPE_POLLUTION_WINDOWS != null) {
+            CharSequence typePollutionRatesReport = ratesReportOf(TYPE_POLLUTION_WINDOWS, TYPE_UPDATE_COUNT_MIN);
+            if (typePollutionRatesReport.length() > 0) {
+                summary.append("--------------------------\nType Pollution Rates:\n");
+                summary.append(typePollutionRatesReport);
             }
-            if (DUMP == null) {
-                try {
-                    DUMP = FileChannel.open(Paths.get(FILE_DUMP), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
-                    DUMP_TMP_BUFFER = ByteBuffer.allocateDirect(summary.length());
-                } catch (IOException e) {
-                    System.err.println("ERROR while creating the Type Pollution Statistics dump to " + FILE_DUMP + " due to: " + e);
-                    DUMP_ERROR = true;
-                    DUMP_TMP_BUFFER = null;
-                    DUMP = null;
-                    System.out.println(summary);
-                    return;
-                }
+            CharSequence missRatesReport = ratesReportOf(MISS_WINDOWS, TYPE_MISS_COUNT_MIN);
+            if (missRatesReport.length() > 0) {
+                summary.append("--------------------------\nMiss Rates:\n");
+                summary.append(missRatesReport);
             }
-            if (DUMP_TMP_BUFFER.capacity() < summary.length()) {
-                DUMP_TMP_BUFFER = ByteBuffer.allocateDirect(summary.length());
+        }
+        boolean emptyReports = typePollutionReport.length() == 0 && missReport.length() == 0;
+        // a failed binary dump falls back to the standard output: the text MUST NOT be appended to the binary stream
+        if (FILE_DUMP == null || BINARY_FILE_DUMP) {
+            if (!emptyReports) {
+                summary.append("--------------------------\n");
+                System.out.println(summary);
             }
-            DUMP_TMP_BUFFER.clear().limit(summary.length());
-            // latin encoding rocks for the report, let's keep it simple
-            for (int i = 0; i < summary.length(); i++) {
-                DUMP_TMP_BUFFER.put(i, (byte) summary.charAt(i));
+            return null;
+        }
+        if (emptyReports) {
+            if (last && REPORT_WRITER != null) {
+                // let the writer close the file
+                REPORT_WRITER.submit("", true, remainingMs(deadline));
+                return closeReportWriter();
             }
-            try {
-                DUMP.write(DUMP_TMP_BUFFER);
-            } catch (IOException e) {
-                System.err.println("ERROR while dumping the Type Pollution Statistics to " + FILE_DUMP + " due to: " + e);
-                DUMP_ERROR = true;
-                DUMP_TMP_BUFFER = null;
-                if (!closeDump()) {
-                    System.out.println(summary);
-                }
-                return;
+            return null;
+        }
+        summary.append("--------------------------\n");
+        if (REPORT_WRITER == null) {
+            REPORT_WRITER = new TraceReportWriter(FILE_DUMP, FILE_ROTATE_BYTES, FILE_ROTATE_SECS, FILE_ROTATE_KEEP, FILE_QUEUE_CAPACITY);
+        }
+        if (!REPORT_WRITER.submit(summary, last, last ? remainingMs(deadline) : 0)) {
+            System.err.println("WARNING: the Type Pollution Statistics report writer is falling behind: report dropped");
+        }
+        return last ? closeReportWriter() : null;
+    }
+
+    /**
+     * The writer thread stops after a last report: the next recording (ie a new dynamic attach) creates a new one.
+     */
+    private static TraceReportWriter closeReportWriter() {
+        final TraceReportWriter writer = REPORT_WRITER;
+        REPORT_WRITER = null;
+        return writer;
+    }
+
+    private static void writeFlameGraph() {
+        if (FLAME_GRAPH_ERROR) {
+            return;
+        }
+        try {
+            // each report replaces the previous one, with the updated weights
+            TraceFlameGraph.write(Paths.get(FLAME_GRAPH_FILE), TYPE_UPDATE_COUNT_MIN);
+        } catch (IOException e) {
+            System.err.println("ERROR while writing the Type Pollution flame graph to " + FLAME_GRAPH_FILE + " due to: " + e);
+            FLAME_GRAPH_ERROR = true;
+        }
+    }
+
+    /**
+     * @return {@code true} if the report has been dumped, {@code false} if it has to be printed instead
+     */
+    private static boolean dumpBinary(boolean last,
+                                      Collection<TraceInstanceOf.TraceCounter.Snapshot> typePollutionCounters,
+                                      Collection<TraceInstanceOf.TraceCounter.Snapshot> missCounters) {
+        if (DUMP_ERROR) {
+            return false;
+        }
+        if (typePollutionCounters.isEmpty() && missCounters.isEmpty()) {
+            return true;
+        }
+        try {
+            if (DUMP == null) {
+                DUMP = FileChannel.open(Paths.get(FILE_DUMP), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                // each writer starts a new stream, with its own string table
+                TraceDumpWriter.writeHeader(DUMP);
+                DUMP_WRITER = new TraceDumpWriter();
             }
-            if (last) {
-                if (!closeDump()) {
-                    System.out.println(summary);
-                }
+            DUMP_WRITER.writeSnapshot(DUMP, System.currentTimeMillis(), last,
+                    ByteBuddyUtils.instrumentedSites(), ByteBuddyUtils.skippedSites(), ASYNC_EVENTS ? TraceEvents.drops() : 0,
+                    typePollutionCounters, missCounters);
+        } catch (IOException e) {
+            System.err.println("ERROR while dumping the Type Pollution Statistics to " + FILE_DUMP + " due to: " + e);
+            DUMP_ERROR = true;
+            DUMP_WRITER = null;
+            if (DUMP != null) {
+                closeDump();
             }
+            return false;
+        }
+        if (last) {
+            DUMP_WRITER = null;
+            closeDump();
         }
+        return true;
     }
 
     private static boolean closeDump() {
@@ -229,7 +714,6 @@ public class Agent {
             return true;
         } catch (IOException ex) {
             DUMP_ERROR = true;
-            DUMP_TMP_BUFFER = null;
             System.err.println("ERROR while closing the Type Pollution Statistics dump on " + FILE_DUMP + " due to: " + ex);
             return false;
         } finally {
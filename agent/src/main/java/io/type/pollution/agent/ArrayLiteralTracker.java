@@ -0,0 +1,305 @@
+package io.type.pollution.agent;
+
+import net.bytebuddy.jar.asm.ConstantDynamic;
+import net.bytebuddy.jar.asm.Opcodes;
+import net.bytebuddy.jar.asm.Type;
+
+import java.util.Arrays;
+
+/**
+ * Tracks the arrays created by {@code anewarray} while they are initialized in place, ie the javac idiom of the array
+ * initializers ({@code new T[]{a, b}}):
+ * <pre>
+ * anewarray T
+ * dup
+ * iconst_0
+ * &lt;a&gt;
+ * aastore
+ * dup
+ * iconst_1
+ * &lt;b&gt;
+ * aastore
+ * </pre>
+ * to let the {@code aastore}s into arrays whose component type is statically known to not be an interface to be left
+ * as they are.
+ * <p>
+ * It simulates the operand stack height (in slots) of the instructions following the {@code anewarray}, and gives up
+ * (ie it stops tracking any array) on any branch, return, throw or stack shuffle ({@code dup_x1}, {@code swap}, etc.):
+ * hence a store is reported as an initializer one just if its array operand is certainly a {@code dup} of a tracked
+ * array.
+ */
+final class ArrayLiteralTracker {
+
+    private static final int GIVE_UP = -1;
+
+    // the stack height since the first tracked array: meaningless while no array is tracked
+    private int height;
+    // the tracked arrays, innermost last
+    private int[] positions = new int[4];
+    private boolean[] duplicated = new boolean[4];
+    private boolean[] skippable = new boolean[4];
+    private int arrays;
+
+    /**
+     * Stops tracking any array.
+     */
+    void giveUp() {
+        arrays = 0;
+    }
+
+    private void update(int pops, int pushes) {
+        if (arrays == 0) {
+            return;
+        }
+        final int low = height - pops;
+        while (arrays > 0 && positions[arrays - 1] > low) {
+            // consumed by the instruction
+            arrays--;
+        }
+        if (arrays > 0 && positions[arrays - 1] + 1 > low) {
+            duplicated[arrays - 1] = false;
+        }
+        height = low + pushes;
+    }
+
+    private void update(int popsAndPushes) {
+        if (popsAndPushes == GIVE_UP) {
+            giveUp();
+        } else {
+            update(popsAndPushes >> 3, popsAndPushes & 7);
+        }
+    }
+
+    private static int effect(int pops, int pushes) {
+        return pops << 3 | pushes;
+    }
+
+    /**
+     * {@code anewarray}, whose stores can be left as they are if {@code skippable}.
+     */
+    void newArray(boolean skippable) {
+        if (arrays == 0) {
+            height = 1;
+        } else {
+            update(1, 1);
+        }
+        if (arrays == positions.length) {
+            positions = Arrays.copyOf(positions, arrays * 2);
+            duplicated = Arrays.copyOf(duplicated, arrays * 2);
+            this.skippable = Arrays.copyOf(this.skippable, arrays * 2);
+        }
+        positions[arrays] = height;
+        duplicated[arrays] = false;
+        this.skippable[arrays] = skippable;
+        arrays++;
+    }
+
+    /**
+     * @return {@code true} if the {@code aastore} which is going to be visited stores into a duplicate of a tracked
+     * skippable array
+     */
+    boolean isSkippableStore() {
+        // the array operand, below the index and the value: the value can be a tracked (nested) array too
+        final int array = height - 2;
+        for (int i = arrays - 1; i >= 0; i--) {
+            if (positions[i] + 1 == array) {
+                return skippable[i] && duplicated[i];
+            }
+        }
+        return false;
+    }
+
+    void insn(int opcode) {
+        if (arrays == 0) {
+            return;
+        }
+        if (opcode == Opcodes.DUP) {
+            if (positions[arrays - 1] == height) {
+                duplicated[arrays - 1] = true;
+            }
+            height++;
+            return;
+        }
+        update(insnEffect(opcode));
+    }
+
+    private static int insnEffect(int opcode) {
+        if (opcode >= Opcodes.IADD && opcode <= Opcodes.DREM) {
+            // I, L, F, D
+            final boolean wide = ((opcode - Opcodes.IADD) & 1) == 1;
+            return wide ? effect(4, 2) : effect(2, 1);
+        }
+        switch (opcode) {
+            case Opcodes.NOP:
+                return effect(0, 0);
+            case Opcodes.ACONST_NULL:
+            case Opcodes.ICONST_M1:
+            case Opcodes.ICONST_0:
+            case Opcodes.ICONST_1:
+            case Opcodes.ICONST_2:
+            case Opcodes.ICONST_3:
+            case Opcodes.ICONST_4:
+            case Opcodes.ICONST_5:
+            case Opcodes.FCONST_0:
+            case Opcodes.FCONST_1:
+            case Opcodes.FCONST_2:
+                return effect(0, 1);
+            case Opcodes.LCONST_0:
+            case Opcodes.LCONST_1:
+            case Opcodes.DCONST_0:
+            case Opcodes.DCONST_1:
+                return effect(0, 2);
+            case Opcodes.IALOAD:
+            case Opcodes.FALOAD:
+            case Opcodes.AALOAD:
+            case Opcodes.BALOAD:
+            case Opcodes.CALOAD:
+            case Opcodes.SALOAD:
+                return effect(2, 1);
+            case Opcodes.LALOAD:
+            case Opcodes.DALOAD:
+                return effect(2, 2);
+            case Opcodes.IASTORE:
+            case Opcodes.FASTORE:
+            case Opcodes.AASTORE:
+            case Opcodes.BASTORE:
+            case Opcodes.CASTORE:
+            case Opcodes.SASTORE:
+                return effect(3, 0);
+            case Opcodes.LASTORE:
+            case Opcodes.DASTORE:
+                return effect(4, 0);
+            case Opcodes.POP:
+            case Opcodes.MONITORENTER:
+            case Opcodes.MONITOREXIT:
+                return effect(1, 0);
+            case Opcodes.POP2:
+                return effect(2, 0);
+            case Opcodes.DUP2:
+                return effect(0, 2);
+            case Opcodes.INEG:
+            case Opcodes.FNEG:
+            case Opcodes.I2F:
+            case Opcodes.F2I:
+            case Opcodes.I2B:
+            case Opcodes.I2C:
+            case Opcodes.I2S:
+            case Opcodes.ARRAYLENGTH:
+                return effect(1, 1);
+            case Opcodes.LNEG:
+            case Opcodes.DNEG:
+            case Opcodes.L2D:
+            case Opcodes.D2L:
+                return effect(2, 2);
+            case Opcodes.ISHL:
+            case Opcodes.ISHR:
+            case Opcodes.IUSHR:
+            case Opcodes.IAND:
+            case Opcodes.IOR:
+            case Opcodes.IXOR:
+            case Opcodes.FCMPL:
+            case Opcodes.FCMPG:
+                return effect(2, 1);
+            case Opcodes.LSHL:
+            case Opcodes.LSHR:
+            case Opcodes.LUSHR:
+                return effect(3, 2);
+            case Opcodes.LAND:
+            case Opcodes.LOR:
+            case Opcodes.LXOR:
+                return effect(4, 2);
+            case Opcodes.I2L:
+            case Opcodes.I2D:
+            case Opcodes.F2L:
+            case Opcodes.F2D:
+                return effect(1, 2);
+            case Opcodes.L2I:
+            case Opcodes.L2F:
+            case Opcodes.D2I:
+            case Opcodes.D2F:
+                return effect(2, 1);
+            case Opcodes.LCMP:
+            case Opcodes.DCMPL:
+            case Opcodes.DCMPG:
+                return effect(4, 1);
+            default:
+                // stack shuffles, returns and athrow
+                return GIVE_UP;
+        }
+    }
+
+    void intInsn(int opcode) {
+        update(opcode == Opcodes.NEWARRAY ? effect(1, 1) : effect(0, 1));
+    }
+
+    void varInsn(int opcode) {
+        switch (opcode) {
+            case Opcodes.LLOAD:
+            case Opcodes.DLOAD:
+                update(effect(0, 2));
+                break;
+            case Opcodes.ILOAD:
+            case Opcodes.FLOAD:
+            case Opcodes.ALOAD:
+                update(effect(0, 1));
+                break;
+            case Opcodes.LSTORE:
+            case Opcodes.DSTORE:
+                update(effect(2, 0));
+                break;
+            case Opcodes.ISTORE:
+            case Opcodes.FSTORE:
+            case Opcodes.ASTORE:
+                update(effect(1, 0));
+                break;
+            default:
+                giveUp();
+        }
+    }
+
+    /**
+     * Any type instruction, but {@code anewarray} (see {@link #newArray}).
+     */
+    void typeInsn(int opcode) {
+        update(opcode == Opcodes.NEW ? effect(0, 1) : effect(1, 1));
+    }
+
+    void fieldInsn(int opcode, String descriptor) {
+        final int size = Type.getType(descriptor).getSize();
+        switch (opcode) {
+            case Opcodes.GETSTATIC:
+                update(0, size);
+                break;
+            case Opcodes.PUTSTATIC:
+                update(size, 0);
+                break;
+            case Opcodes.GETFIELD:
+                update(1, size);
+                break;
+            default:
+                update(1 + size, 0);
+        }
+    }
+
+    /**
+     * A method invocation, including {@code invokedynamic} (as {@code hasReceiver == false}).
+     */
+    void invoke(String descriptor, boolean hasReceiver) {
+        if (arrays == 0) {
+            return;
+        }
+        final int sizes = Type.getArgumentsAndReturnSizes(descriptor);
+        // the arguments size includes the receiver
+        update((sizes >> 2) - (hasReceiver ? 0 : 1), sizes & 3);
+    }
+
+    void ldc(Object value) {
+        final boolean wide = value instanceof Long || value instanceof Double ||
+                (value instanceof ConstantDynamic && ((ConstantDynamic) value).getSize() == 2);
+        update(wide ? effect(0, 2) : effect(0, 1));
+    }
+
+    void multiANewArray(int dimensions) {
+        update(dimensions, 1);
+    }
+}
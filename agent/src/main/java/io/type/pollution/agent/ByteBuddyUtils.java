@@ -1,12 +1,51 @@
 package io.type.pollution.agent;
 
 
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.jar.asm.Handle;
 import net.bytebuddy.jar.asm.Label;
 import net.bytebuddy.jar.asm.Opcodes;
 import net.bytebuddy.jar.asm.Type;
+import net.bytebuddy.pool.TypePool;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ByteBuddyUtils {
 
+    // aastore is instrumented everywhere but the array initializers of non interface types, because the array
+    // component type is known at runtime only: it's opt-in, since it grows the code of the methods
+    private static final boolean ARRAY_STORES = Boolean.getBoolean("io.type.pollution.aastore");
+
+    private static final AtomicLong INSTRUMENTED_SITES = new AtomicLong();
+    private static final AtomicLong SKIPPED_SITES = new AtomicLong();
+
+    private static final String BOOTSTRAP_DESCRIPTOR_PREFIX =
+            "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;";
+
+    static final Handle TYPE_CHECK_BOOTSTRAP = new Handle(Opcodes.H_INVOKESTATIC,
+            Type.getInternalName(TraceBootstraps.class),
+            "typeCheck",
+            BOOTSTRAP_DESCRIPTOR_PREFIX + "Ljava/lang/Class;I)Ljava/lang/invoke/CallSite;", false);
+
+    static final Handle CLASS_CHECK_BOOTSTRAP = new Handle(Opcodes.H_INVOKESTATIC,
+            Type.getInternalName(TraceBootstraps.class),
+            "classCheck",
+            BOOTSTRAP_DESCRIPTOR_PREFIX + "I)Ljava/lang/invoke/CallSite;", false);
+
+    static final Handle ARRAY_STORE_CHECK_BOOTSTRAP = new Handle(Opcodes.H_INVOKESTATIC,
+            Type.getInternalName(TraceBootstraps.class),
+            "arrayStoreCheck",
+            BOOTSTRAP_DESCRIPTOR_PREFIX + "I)Ljava/lang/invoke/CallSite;", false);
+
+    static final Handle SWITCH_CHECK_BOOTSTRAP = new Handle(Opcodes.H_INVOKESTATIC,
+            Type.getInternalName(TraceBootstraps.class),
+            "switchCheck",
+            BOOTSTRAP_DESCRIPTOR_PREFIX + "I[Ljava/lang/Object;)Ljava/lang/invoke/CallSite;", false);
+
+    private static final String SWITCH_BOOTSTRAPS = "java/lang/runtime/SwitchBootstraps";
+
     static class ByteBuddyTypePollutionInstructionAdapter extends net.bytebuddy.jar.asm.MethodVisitor {
 
         private final String classDescriptor;
@@ -14,15 +53,30 @@ public class ByteBuddyUtils {
 
         private final String classFile;
 
+        // invokedynamic isn't available before Java 7 class files
+        private final boolean indy;
+
+        // null if the checked types cannot be resolved at transform time
+        private final TypePool typePool;
+
         private String tracePrefix;
 
         private int line;
 
-        protected ByteBuddyTypePollutionInstructionAdapter(int api, net.bytebuddy.jar.asm.MethodVisitor methodVisitor, String classDescriptor, String methodName, String classFile) {
+        // null if the array stores are not instrumented
+        private final ArrayLiteralTracker arrayLiterals = ARRAY_STORES ? new ArrayLiteralTracker() : null;
+
+        protected ByteBuddyTypePollutionInstructionAdapter(int api, net.bytebuddy.jar.asm.MethodVisitor methodVisitor, String classDescriptor, String methodName, String classFile, boolean indy, TypePool typePool) {
             super(api, methodVisitor);
+            this.typePool = typePool;
             this.classDescriptor = classDescriptor;
             this.methodName = methodName;
             this.classFile = classFile;
+            this.indy = indy;
+        }
+
+        private int site() {
+            return CallSiteRegistry.register(trace());
         }
 
         private String trace() {
@@ -38,32 +92,23 @@ public class ByteBuddyUtils {
 
         @Override
         public void visitMethodInsn(final int opcode, final String owner, final String name, final String descriptor, final boolean isInterface) {
+            if (arrayLiterals != null) {
+                arrayLiterals.invoke(descriptor, opcode != Opcodes.INVOKESTATIC);
+            }
             if (opcode == Opcodes.INVOKEVIRTUAL && "java/lang/Class".equals(owner)) {
                 switch (name) {
                     case "cast":
                         mv.visitInsn(Opcodes.DUP2);
-                        mv.visitLdcInsn(trace());
-                        mv.visitMethodInsn(net.bytebuddy.jar.asm.Opcodes.INVOKESTATIC,
-                                Type.getInternalName(TraceInstanceOf.class),
-                                "traceCast",
-                                "(Ljava/lang/Class;Ljava/lang/Object;Ljava/lang/String;)V", false);
+                        classCheck("cast", "traceCast", "(Ljava/lang/Class;Ljava/lang/Object;", "V");
                         super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
                         break;
                     case "isInstance":
-                        mv.visitLdcInsn(trace());
-                        mv.visitMethodInsn(Opcodes.INVOKESTATIC,
-                                Type.getInternalName(TraceInstanceOf.class),
-                                "traceIsInstance",
-                                "(Ljava/lang/Class;Ljava/lang/Object;Ljava/lang/String;)Z", false);
+                        classCheck("isInstance", "traceIsInstance", "(Ljava/lang/Class;Ljava/lang/Object;", "Z");
                         break;
                     case "isAssignableFrom":
                         mv.visitInsn(Opcodes.DUP2);
                         super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
-                        mv.visitLdcInsn(trace());
-                        mv.visitMethodInsn(net.bytebuddy.jar.asm.Opcodes.INVOKESTATIC,
-                                Type.getInternalName(TraceInstanceOf.class),
-                                "traceIsAssignableFrom",
-                                "(Ljava/lang/Class;Ljava/lang/Class;ZLjava/lang/String;)Z", false);
+                        classCheck("isAssignableFrom", "traceIsAssignableFrom", "(Ljava/lang/Class;Ljava/lang/Class;Z", "Z");
                         break;
                     default:
                         super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
@@ -73,8 +118,180 @@ public class ByteBuddyUtils {
             }
         }
 
+        private void classCheck(final String name, final String staticProbe, final String parameters, final String returnType) {
+            INSTRUMENTED_SITES.incrementAndGet();
+            if (indy) {
+                mv.visitInvokeDynamicInsn(name, parameters + ")" + returnType, CLASS_CHECK_BOOTSTRAP, site());
+            } else {
+                mv.visitLdcInsn(site());
+                mv.visitMethodInsn(Opcodes.INVOKESTATIC,
+                        Type.getInternalName(TraceInstanceOf.class),
+                        staticProbe,
+                        parameters + "I)" + returnType, false);
+            }
+        }
+
+        private void typeCheck(final Type type, final String name, final String staticProbe, final String returnType) {
+            INSTRUMENTED_SITES.incrementAndGet();
+            if (indy) {
+                mv.visitInvokeDynamicInsn(name, "(Ljava/lang/Object;)" + returnType, TYPE_CHECK_BOOTSTRAP, type, site());
+            } else {
+                mv.visitLdcInsn(type);
+                mv.visitLdcInsn(site());
+                mv.visitMethodInsn(Opcodes.INVOKESTATIC,
+                        Type.getInternalName(TraceInstanceOf.class),
+                        staticProbe,
+                        "(Ljava/lang/Object;Ljava/lang/Class;I)" + returnType, false);
+            }
+        }
+
+        @Override
+        public void visitInsn(final int opcode) {
+            if (opcode != Opcodes.AASTORE || arrayLiterals == null) {
+                if (arrayLiterals != null) {
+                    arrayLiterals.insn(opcode);
+                }
+                super.visitInsn(opcode);
+                return;
+            }
+            final boolean initializer = arrayLiterals.isSkippableStore();
+            arrayLiterals.insn(opcode);
+            if (initializer) {
+                SKIPPED_SITES.incrementAndGet();
+                super.visitInsn(opcode);
+            } else {
+                arrayStore();
+            }
+        }
+
+        @Override
+        public void visitIntInsn(final int opcode, final int operand) {
+            if (arrayLiterals != null) {
+                arrayLiterals.intInsn(opcode);
+            }
+            super.visitIntInsn(opcode, operand);
+        }
+
+        @Override
+        public void visitVarInsn(final int opcode, final int varIndex) {
+            if (arrayLiterals != null) {
+                arrayLiterals.varInsn(opcode);
+            }
+            super.visitVarInsn(opcode, varIndex);
+        }
+
+        @Override
+        public void visitFieldInsn(final int opcode, final String owner, final String name, final String descriptor) {
+            if (arrayLiterals != null) {
+                arrayLiterals.fieldInsn(opcode, descriptor);
+            }
+            super.visitFieldInsn(opcode, owner, name, descriptor);
+        }
+
+        @Override
+        public void visitLdcInsn(final Object value) {
+            if (arrayLiterals != null) {
+                arrayLiterals.ldc(value);
+            }
+            super.visitLdcInsn(value);
+        }
+
+        @Override
+        public void visitMultiANewArrayInsn(final String descriptor, final int numDimensions) {
+            if (arrayLiterals != null) {
+                arrayLiterals.multiANewArray(numDimensions);
+            }
+            super.visitMultiANewArrayInsn(descriptor, numDimensions);
+        }
+
+        @Override
+        public void visitJumpInsn(final int opcode, final Label label) {
+            if (arrayLiterals != null) {
+                arrayLiterals.giveUp();
+            }
+            super.visitJumpInsn(opcode, label);
+        }
+
+        @Override
+        public void visitTableSwitchInsn(final int min, final int max, final Label dflt, final Label... labels) {
+            if (arrayLiterals != null) {
+                arrayLiterals.giveUp();
+            }
+            super.visitTableSwitchInsn(min, max, dflt, labels);
+        }
+
+        @Override
+        public void visitLookupSwitchInsn(final Label dflt, final int[] keys, final Label[] labels) {
+            if (arrayLiterals != null) {
+                arrayLiterals.giveUp();
+            }
+            super.visitLookupSwitchInsn(dflt, keys, labels);
+        }
+
+        @Override
+        public void visitInvokeDynamicInsn(final String name, final String descriptor, final Handle bootstrapMethodHandle, final Object... bootstrapMethodArguments) {
+            if (arrayLiterals != null) {
+                arrayLiterals.invoke(descriptor, false);
+            }
+            if (SWITCH_BOOTSTRAPS.equals(bootstrapMethodHandle.getOwner()) && "typeSwitch".equals(bootstrapMethodHandle.getName())) {
+                typeSwitch(bootstrapMethodArguments);
+            }
+            super.visitInvokeDynamicInsn(name, descriptor, bootstrapMethodHandle, bootstrapMethodArguments);
+        }
+
+        /**
+         * Replaces the {@code aastore}: the probe performs the store itself, after tracing the store check.
+         */
+        private void arrayStore() {
+            INSTRUMENTED_SITES.incrementAndGet();
+            if (indy) {
+                mv.visitInvokeDynamicInsn("aastore", "([Ljava/lang/Object;ILjava/lang/Object;)V", ARRAY_STORE_CHECK_BOOTSTRAP, site());
+            } else {
+                mv.visitLdcInsn(site());
+                mv.visitMethodInsn(Opcodes.INVOKESTATIC,
+                        Type.getInternalName(TraceInstanceOf.class),
+                        "traceAastore",
+                        "([Ljava/lang/Object;ILjava/lang/Object;I)V", false);
+            }
+        }
+
+        /**
+         * Traces the type checks of a {@code SwitchBootstraps::typeSwitch} against its class labels, passing them to
+         * the probe as (label index, label) pairs, to let it to find the first matching one from the restart index.
+         */
+        private void typeSwitch(final Object[] labels) {
+            final List<Object> arguments = new ArrayList<>();
+            // the site, registered just if instrumented
+            arguments.add(0);
+            boolean canPollute = false;
+            for (int i = 0; i < labels.length; i++) {
+                if (labels[i] instanceof Type) {
+                    final Type label = (Type) labels[i];
+                    canPollute |= canPollute(label);
+                    arguments.add(i);
+                    arguments.add(label);
+                }
+            }
+            if (!canPollute) {
+                SKIPPED_SITES.incrementAndGet();
+                return;
+            }
+            INSTRUMENTED_SITES.incrementAndGet();
+            arguments.set(0, site());
+            // the selector and the restart index
+            mv.visitInsn(Opcodes.DUP2);
+            mv.visitInvokeDynamicInsn("typeSwitch", "(Ljava/lang/Object;I)V", SWITCH_CHECK_BOOTSTRAP, arguments.toArray());
+        }
+
         @Override
         public void visitTypeInsn(final int opcode, final String type) {
+            if (arrayLiterals != null) {
+                if (opcode == Opcodes.ANEWARRAY) {
+                    arrayLiterals.newArray(!canPollute(Type.getObjectType(type)));
+                } else {
+                    arrayLiterals.typeInsn(opcode);
+                }
+            }
             switch (opcode) {
                 case Opcodes.CHECKCAST:
                     checkcast(Type.getObjectType(type));
@@ -93,24 +310,52 @@ public class ByteBuddyUtils {
             super.visitLineNumber(line, start);
         }
 
+        /**
+         * A type check can pollute the secondary super cache just if the checked type is an interface or an array of
+         * interfaces (which are secondary supers of the arrays of their implementors): any other type, including
+         * {@link Object}, (final) classes and the other arrays is skipped, if it can be resolved.
+         */
+        private boolean canPollute(final Type type) {
+            if (type.getSort() == Type.ARRAY) {
+                return type.getElementType().getSort() == Type.OBJECT && canPollute(type.getElementType());
+            }
+            if (type.getSort() != Type.OBJECT || "java/lang/Object".equals(type.getInternalName())) {
+                return false;
+            }
+            if (typePool == null) {
+                return true;
+            }
+            try {
+                final TypePool.Resolution resolution = typePool.describe(type.getClassName());
+                if (!resolution.isResolved()) {
+                    return true;
+                }
+                final TypeDescription typeDescription = resolution.resolve();
+                return typeDescription.isInterface();
+            } catch (Throwable t) {
+                // better safe than sorry
+                return true;
+            }
+        }
+
         public void checkcast(final Type type) {
-            mv.visitInsn(net.bytebuddy.jar.asm.Opcodes.DUP);
-            mv.visitLdcInsn(type);
-            mv.visitLdcInsn(trace());
-            mv.visitMethodInsn(net.bytebuddy.jar.asm.Opcodes.INVOKESTATIC,
-                    Type.getInternalName(TraceInstanceOf.class),
-                    "traceCheckcast",
-                    "(Ljava/lang/Object;Ljava/lang/Class;Ljava/lang/String;)V", false);
-            super.visitTypeInsn(net.bytebuddy.jar.asm.Opcodes.CHECKCAST, type.getInternalName());
+            if (!canPollute(type)) {
+                SKIPPED_SITES.incrementAndGet();
+                super.visitTypeInsn(Opcodes.CHECKCAST, type.getInternalName());
+                return;
+            }
+            mv.visitInsn(Opcodes.DUP);
+            typeCheck(type, "checkcast", "traceCheckcast", "V");
+            super.visitTypeInsn(Opcodes.CHECKCAST, type.getInternalName());
         }
 
         public void instanceOf(final Type type) {
-            mv.visitLdcInsn(type);
-            mv.visitLdcInsn(trace());
-            mv.visitMethodInsn(Opcodes.INVOKESTATIC,
-                    Type.getInternalName(TraceInstanceOf.class),
-                    "traceInstanceOf",
-                    "(Ljava/lang/Object;Ljava/lang/Class;Ljava/lang/String;)Z", false);
+            if (!canPollute(type)) {
+                SKIPPED_SITES.incrementAndGet();
+                super.visitTypeInsn(Opcodes.INSTANCEOF, type.getInternalName());
+                return;
+            }
+            typeCheck(type, "instanceOf", "traceInstanceOf", "Z");
         }
     }
 
@@ -118,9 +363,12 @@ public class ByteBuddyUtils {
 
         private String name;
         private String source;
+        private boolean indy;
+        private final TypePool typePool;
 
-        ByteBuddyTypePollutionClassVisitor(int api, net.bytebuddy.jar.asm.ClassVisitor cv) {
+        ByteBuddyTypePollutionClassVisitor(int api, net.bytebuddy.jar.asm.ClassVisitor cv, TypePool typePool) {
             super(api, cv);
+            this.typePool = typePool;
         }
 
         @Override
@@ -132,6 +380,7 @@ public class ByteBuddyUtils {
         @Override
         public void visit(final int version, final int access, final String name, final String signature, final String superName, final String[] interfaces) {
             this.name = name;
+            this.indy = (version & 0xFFFF) >= Opcodes.V1_7;
             super.visit(version, access, name, signature, superName, interfaces);
         }
 
@@ -139,7 +388,15 @@ public class ByteBuddyUtils {
         public net.bytebuddy.jar.asm.MethodVisitor visitMethod(int flags, String name,
                                                                String desc, String signature, String[] exceptions) {
             return new ByteBuddyTypePollutionInstructionAdapter(api, super.visitMethod(flags, name, desc,
-                    signature, exceptions), this.name, name, source);
+                    signature, exceptions), this.name, name, source, indy, typePool);
         }
     }
+
+    static long instrumentedSites() {
+        return INSTRUMENTED_SITES.get();
+    }
+
+    static long skippedSites() {
+        return SKIPPED_SITES.get();
+    }
 }
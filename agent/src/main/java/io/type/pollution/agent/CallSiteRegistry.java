@@ -0,0 +1,64 @@
+package io.type.pollution.agent;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Assigns a dense int id to each instrumented call site while transforming classes, to let the probes to pass just
+ * the id to {@link TraceInstanceOf}: the trace {@link String}s are resolved back just while building the reports.
+ * <p>
+ * The ids start from {@code 1}, and the same trace always maps to the same id, including after a retransformation.
+ */
+final class CallSiteRegistry {
+
+    private static final ConcurrentHashMap<String, Integer> IDS = new ConcurrentHashMap<>();
+    private static volatile String[] TRACES = new String[1024];
+    private static int NEXT_ID = 1;
+
+    private CallSiteRegistry() {
+
+    }
+
+    static int register(String trace) {
+        final Integer id = IDS.get(trace);
+        if (id != null) {
+            return id;
+        }
+        synchronized (IDS) {
+            final Integer existing = IDS.get(trace);
+            if (existing != null) {
+                return existing;
+            }
+            final int newId = NEXT_ID++;
+            String[] traces = TRACES;
+            if (newId >= traces.length) {
+                traces = Arrays.copyOf(traces, traces.length * 2);
+            }
+            traces[newId] = trace;
+            // publish the trace before its id
+            TRACES = traces;
+            IDS.put(trace, newId);
+            return newId;
+        }
+    }
+
+    static String trace(int id) {
+        final String[] traces = TRACES;
+        if (id <= 0 || id >= traces.length) {
+            return null;
+        }
+        return traces[id];
+    }
+
+    /**
+     * @return the id of an already registered trace or {@code 0}
+     */
+    static int idOf(String trace) {
+        final Integer id = IDS.get(trace);
+        return id == null ? 0 : id;
+    }
+
+    static int size() {
+        return IDS.size();
+    }
+}
@@ -0,0 +1,124 @@
+package io.type.pollution.agent;
+
+import java.util.Iterator;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/**
+ * Interned call-tree of the sampled full stack traces, shared by all the counters.
+ * <p>
+ * The children of the root are the innermost frames, ie the callers of the type checks: each captured stack trace is
+ * a path from the root to a {@link Node}, which is unique for that path, hence it can be used as a key of the stack
+ * trace (the samples are counted by the users of the keys).
+ * <p>
+ * The frames are walked lazily with a {@link StackWalker}: the agent frames are skipped (instead of relying on the
+ * depth of the probes) and the walk stops after {@link Agent#FULL_STACK_TRACES_LIMIT} frames, without materializing
+ * the whole stack. Nodes are never removed.
+ */
+final class CallTree {
+
+    private static final String AGENT_PACKAGE = CallTree.class.getPackage().getName() + '.';
+    private static final StackWalker WALKER = StackWalker.getInstance();
+    private static final Node[] NO_CHILDREN = new Node[0];
+    private static final Node ROOT = new Node(null, null);
+    private static final Function<Stream<StackWalker.StackFrame>, Node> INTERN = frames -> capture(frames, true);
+    private static final Function<Stream<StackWalker.StackFrame>, Node> LOOKUP = frames -> capture(frames, false);
+
+    static final class Node {
+
+        private final Node parent;
+        private final String className;
+        private final String methodName;
+        private final int lineNumber;
+        // resolved once, when interned
+        private final StackTraceElement frame;
+        private final int depth;
+        // copy-on-write, guarded by this on writes: the fan-out of a frame is usually small
+        private volatile Node[] children = NO_CHILDREN;
+
+        private Node(Node parent, StackWalker.StackFrame frame) {
+            this.parent = parent;
+            this.className = frame == null ? null : frame.getClassName();
+            this.methodName = frame == null ? null : frame.getMethodName();
+            this.lineNumber = frame == null ? -1 : frame.getLineNumber();
+            this.frame = frame == null ? null : frame.toStackTraceElement();
+            this.depth = parent == null ? 0 : parent.depth + 1;
+        }
+
+        private boolean is(StackWalker.StackFrame frame) {
+            return lineNumber == frame.getLineNumber() &&
+                    methodName.equals(frame.getMethodName()) &&
+                    className.equals(frame.getClassName());
+        }
+
+        private static Node find(Node[] children, StackWalker.StackFrame frame) {
+            for (Node child : children) {
+                if (child.is(frame)) {
+                    return child;
+                }
+            }
+            return null;
+        }
+
+        private Node child(StackWalker.StackFrame frame, boolean intern) {
+            final Node child = find(children, frame);
+            if (child != null || !intern) {
+                return child;
+            }
+            synchronized (this) {
+                final Node[] children = this.children;
+                final Node existing = find(children, frame);
+                if (existing != null) {
+                    return existing;
+                }
+                final Node added = new Node(this, frame);
+                final Node[] newChildren = new Node[children.length + 1];
+                System.arraycopy(children, 0, newChildren, 0, children.length);
+                newChildren[children.length] = added;
+                this.children = newChildren;
+                return added;
+            }
+        }
+
+        /**
+         * @return the frames of the path ending on this node, innermost first (as {@link Throwable#getStackTrace()})
+         */
+        StackTraceElement[] stackTrace() {
+            final StackTraceElement[] stackTrace = new StackTraceElement[depth];
+            for (Node node = this; node.parent != null; node = node.parent) {
+                stackTrace[node.depth - 1] = node.frame;
+            }
+            return stackTrace;
+        }
+    }
+
+    private CallTree() {
+
+    }
+
+    private static Node capture(Stream<StackWalker.StackFrame> frames, boolean intern) {
+        Stream<StackWalker.StackFrame> callerFrames = frames.dropWhile(frame -> frame.getClassName().startsWith(AGENT_PACKAGE));
+        if (Agent.FULL_STACK_TRACES_LIMIT > 0) {
+            callerFrames = callerFrames.limit(Agent.FULL_STACK_TRACES_LIMIT);
+        }
+        Node node = ROOT;
+        final Iterator<StackWalker.StackFrame> iterator = callerFrames.iterator();
+        while (iterator.hasNext()) {
+            node = node.child(iterator.next(), intern);
+            if (node == null) {
+                return null;
+            }
+        }
+        return node == ROOT ? null : node;
+    }
+
+    /**
+     * Captures the stack trace of the current thread, adding its frames to the tree if {@code intern}.
+     *
+     * @return the node of the captured stack trace or {@code null} if there are no frames or {@code !intern} and the
+     * stack trace is not in the tree yet
+     */
+    static Node capture(boolean intern) {
+        return WALKER.walk(intern ? INTERN : LOOKUP);
+    }
+}
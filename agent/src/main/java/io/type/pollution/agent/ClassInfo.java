@@ -0,0 +1,117 @@
+package io.type.pollution.agent;
+
+import java.io.Serializable;
+import java.lang.reflect.Array;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+
+/**
+ * Per {@link Class} information used by the probes, including a dense int id which can be packed together
+ * with the {@link CallSiteRegistry} ids.
+ * <p>
+ * The ids start from {@code 1}.
+ * <p>
+ * A class with less than 2 secondary supers (ie the interfaces it implements, transitively) cannot thrash
+ * its secondary super cache: the probes can skip it without allocating any counter.
+ */
+final class ClassInfo {
+
+    private static final Object LOCK = new Object();
+    private static volatile ClassInfo[] BY_ID = new ClassInfo[256];
+    private static int NEXT_ID = 1;
+
+    private static final ClassValue<ClassInfo> INFO = new ClassValue<>() {
+        @Override
+        protected ClassInfo computeValue(Class<?> aClass) {
+            return register(aClass);
+        }
+    };
+
+    private static final Class<?>[] ARRAY_SECONDARY_SUPERS = {Cloneable.class, Serializable.class};
+
+    final Class<?> clazz;
+    final int id;
+    // HotSpot approximated secondary supers, in order
+    final Class<?>[] secondarySupers;
+    final boolean canPollute;
+    // lazily created by TraceInstanceOf
+    volatile TraceInstanceOf.TypePollutionTraceCounter typePollutionCounter;
+    volatile TraceInstanceOf.MissTraceCounter missCounter;
+
+    private ClassInfo(Class<?> clazz, int id, Class<?>[] secondarySupers) {
+        this.clazz = clazz;
+        this.id = id;
+        this.secondarySupers = secondarySupers;
+        this.canPollute = secondarySupers.length >= 2;
+    }
+
+    private static Class<?>[] secondarySupersOf(Class<?> clazz) {
+        if (clazz.isPrimitive()) {
+            return new Class<?>[0];
+        }
+        final LinkedHashSet<Class<?>> secondarySupers = new LinkedHashSet<>();
+        if (clazz.isArray()) {
+            secondarySupers.addAll(Arrays.asList(ARRAY_SECONDARY_SUPERS));
+            final Class<?> componentType = clazz.getComponentType();
+            if (!componentType.isPrimitive()) {
+                // the arrays of the component type secondary supers
+                for (Class<?> componentSecondarySuper : of(componentType).secondarySupers) {
+                    secondarySupers.add(Array.newInstance(componentSecondarySuper, 0).getClass());
+                }
+            }
+        } else {
+            for (Class<?> type = clazz; type != null; type = type.getSuperclass()) {
+                addInterfaces(type, secondarySupers);
+            }
+        }
+        return secondarySupers.toArray(new Class<?>[0]);
+    }
+
+    private static void addInterfaces(Class<?> type, LinkedHashSet<Class<?>> interfaces) {
+        for (Class<?> anInterface : type.getInterfaces()) {
+            if (interfaces.add(anInterface)) {
+                addInterfaces(anInterface, interfaces);
+            }
+        }
+    }
+
+    private static ClassInfo register(Class<?> clazz) {
+        // out of the lock: it can register other classes
+        final Class<?>[] secondarySupers = secondarySupersOf(clazz);
+        synchronized (LOCK) {
+            final int id = NEXT_ID++;
+            final ClassInfo info = new ClassInfo(clazz, id, secondarySupers);
+            ClassInfo[] byId = BY_ID;
+            if (id >= byId.length) {
+                byId = Arrays.copyOf(byId, byId.length * 2);
+            }
+            byId[id] = info;
+            BY_ID = byId;
+            return info;
+        }
+    }
+
+    /**
+     * @return {@code true} if {@code type} is checked against the secondary supers, ie it's an interface or an array
+     * of interfaces
+     */
+    static boolean isSecondarySuper(Class<?> type) {
+        Class<?> elementType = type;
+        while (elementType.isArray()) {
+            elementType = elementType.getComponentType();
+        }
+        return elementType.isInterface();
+    }
+
+    static ClassInfo of(Class<?> clazz) {
+        return INFO.get(clazz);
+    }
+
+    static ClassInfo byId(int id) {
+        final ClassInfo[] byId = BY_ID;
+        if (id <= 0 || id >= byId.length) {
+            return null;
+        }
+        return byId[id];
+    }
+}
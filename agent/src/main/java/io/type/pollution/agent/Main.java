@@ -0,0 +1,296 @@
+package io.type.pollution.agent;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Command line tools of the agent jar:
+ * <pre>
+ * java -jar type-pollution-agent.jar analyze &lt;binary dump&gt; [--format text|csv|json]
+ * java -jar type-pollution-agent.jar scan &lt;jar|class directory&gt;... [--top N]
+ * </pre>
+ */
+public class Main {
+
+    private static void usage() {
+        System.err.println("Usage: java -jar type-pollution-agent.jar analyze <binary dump> [--format text|csv|json]");
+        System.err.println("       java -jar type-pollution-agent.jar scan <jar|class directory>... [--top N]");
+        System.exit(1);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length >= 2 && "scan".equals(args[0])) {
+            scan(args);
+            return;
+        }
+        if (args.length < 2 || !"analyze".equals(args[0])) {
+            usage();
+            return;
+        }
+        String format = "text";
+        for (int i = 2; i < args.length; i++) {
+            if ("--format".equals(args[i]) && i + 1 < args.length) {
+                format = args[++i];
+            } else if (args[i].startsWith("--format=")) {
+                format = args[i].substring("--format=".length());
+            } else {
+                usage();
+                return;
+            }
+        }
+        final PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8)));
+        try (InputStream dump = Files.newInputStream(Paths.get(args[1]));
+             TraceDumpReader reader = new TraceDumpReader(dump)) {
+            switch (format) {
+                case "text":
+                    analyzeAsText(reader, out);
+                    break;
+                case "csv":
+                    analyzeAsCsv(reader, out);
+                    break;
+                case "json":
+                    analyzeAsJson(reader, out);
+                    break;
+                default:
+                    usage();
+            }
+        } finally {
+            out.flush();
+        }
+    }
+
+    private static void scan(String[] args) throws IOException {
+        final List<Path> paths = new ArrayList<>();
+        int top = 0;
+        for (int i = 1; i < args.length; i++) {
+            try {
+                if ("--top".equals(args[i]) && i + 1 < args.length) {
+                    top = Integer.parseInt(args[++i]);
+                } else if (args[i].startsWith("--top=")) {
+                    top = Integer.parseInt(args[i].substring("--top=".length()));
+                } else {
+                    paths.add(Paths.get(args[i]));
+                }
+            } catch (NumberFormatException e) {
+                usage();
+                return;
+            }
+        }
+        if (paths.isEmpty()) {
+            usage();
+            return;
+        }
+        final PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8)));
+        final TypeCheckScanner scanner = new TypeCheckScanner(paths);
+        final ForkJoinPool pool = new ForkJoinPool();
+        try {
+            TypeCheckScanner.print(scanner, scanner.scan(pool), top, out);
+        } finally {
+            pool.shutdown();
+            scanner.close();
+            out.flush();
+        }
+    }
+
+    private static String timestampOf(TraceDumpReader.Snapshot snapshot) {
+        return new SimpleDateFormat("yyyy/MM/dd HH:mm:ss").format(new Date(snapshot.timestampMs));
+    }
+
+    private static void analyzeAsText(TraceDumpReader reader, PrintWriter out) throws IOException {
+        TraceDumpReader.Snapshot snapshot;
+        while ((snapshot = reader.next()) != null) {
+            final String estimated = snapshot.samplingPeriod > 1 ? "~" : "";
+            out.print("--------------------------\nType Check Statistics:\n--------------------------\n");
+            out.print("Date:\t" + timestampOf(snapshot) + '\n');
+            out.print("Last:\t" + snapshot.last + '\n');
+            out.print("Sites:\t" + snapshot.instrumentedSites + " instrumented, " + snapshot.skippedSites + " skipped (cannot pollute)\n");
+            if (snapshot.samplingPeriod > 1) {
+                out.print("Sampling:\t1/" + snapshot.samplingPeriod + '\n');
+            }
+            if (snapshot.dropped > 0) {
+                out.print("Dropped:\t" + snapshot.dropped + '\n');
+            }
+            if (!snapshot.typePollutionCounters.isEmpty()) {
+                out.print("--------------------------\nType Pollution:\n");
+                printCounters(snapshot.typePollutionCounters, true, estimated, out);
+            }
+            if (!snapshot.missCounters.isEmpty()) {
+                out.print("--------------------------\nMiss:\n");
+                printCounters(snapshot.missCounters, false, estimated, out);
+            }
+            out.print("--------------------------\n");
+        }
+    }
+
+    private static void printCounters(List<TraceDumpReader.Counter> counters, boolean typePollution, String estimated, PrintWriter out) {
+        int rowId = 0;
+        for (TraceDumpReader.Counter counter : counters) {
+            out.print("--------------------------\n");
+            rowId++;
+            out.print(rowId + ":\t" + counter.clazz + '\n');
+            out.print("Count:\t" + estimated + counter.count + '\n');
+            if (typePollution) {
+                out.print("Cross-thread:\t" + counter.crossThreadCount + '\n');
+            }
+            out.print("Types:\n");
+            for (String seen : counter.seen) {
+                out.print("\t" + seen + '\n');
+            }
+            out.print("Traces:\n");
+            for (TraceDumpReader.Trace trace : counter.traces) {
+                out.print("\t" + trace.trace + '\n');
+                for (TraceDumpReader.ClassCount count : trace.interfaceCounts) {
+                    out.print("\t\tclass: " + count.interfaceClazz + '\n');
+                    out.print("\t\tcount: " + estimated + count.count + '\n');
+                    if (typePollution) {
+                        out.print("\t\tcross-thread: " + count.crossThreadCount + '\n');
+                    }
+                }
+            }
+            if (!counter.threadPairs.isEmpty()) {
+                out.print("Thread Pairs:\n");
+                for (TraceDumpReader.ThreadPair pair : counter.threadPairs) {
+                    out.print("\t" + pair.fromThread + " -> " + pair.toThread + ": " + pair.count + '\n');
+                }
+            }
+            if (!counter.fullStackTraces.isEmpty()) {
+                out.print("Full Traces:\n");
+                for (List<String> frames : counter.fullStackTraces) {
+                    out.print("\t--------------------------\n");
+                    for (String frame : frames) {
+                        out.print("\t" + frame + '\n');
+                    }
+                }
+            }
+        }
+    }
+
+    private static String csvOf(String value) {
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+
+    private static void analyzeAsCsv(TraceDumpReader reader, PrintWriter out) throws IOException {
+        out.print("timestamp,last,kind,class,trace,interface,count,cross_thread_count\n");
+        TraceDumpReader.Snapshot snapshot;
+        while ((snapshot = reader.next()) != null) {
+            printCsvRows(snapshot, "type_pollution", snapshot.typePollutionCounters, out);
+            printCsvRows(snapshot, "miss", snapshot.missCounters, out);
+        }
+    }
+
+    private static void printCsvRows(TraceDumpReader.Snapshot snapshot, String kind, List<TraceDumpReader.Counter> counters, PrintWriter out) {
+        for (TraceDumpReader.Counter counter : counters) {
+            for (TraceDumpReader.Trace trace : counter.traces) {
+                for (TraceDumpReader.ClassCount count : trace.interfaceCounts) {
+                    out.print(snapshot.timestampMs + "," + snapshot.last + "," + kind + "," + csvOf(counter.clazz) + ","
+                            + csvOf(trace.trace) + "," + csvOf(count.interfaceClazz) + "," + count.count + ","
+                            + count.crossThreadCount + '\n');
+                }
+            }
+        }
+    }
+
+    private static String jsonOf(String value) {
+        final StringBuilder json = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    json.append("\\\"");
+                    break;
+                case '\\':
+                    json.append("\\\\");
+                    break;
+                case '\n':
+                    json.append("\\n");
+                    break;
+                case '\t':
+                    json.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        json.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        json.append(c);
+                    }
+            }
+        }
+        return json.append('"').toString();
+    }
+
+    private static void analyzeAsJson(TraceDumpReader reader, PrintWriter out) throws IOException {
+        out.print("[");
+        TraceDumpReader.Snapshot snapshot;
+        boolean first = true;
+        while ((snapshot = reader.next()) != null) {
+            if (!first) {
+                out.print(",");
+            }
+            first = false;
+            out.print("\n{\"timestamp\":" + snapshot.timestampMs + ",\"last\":" + snapshot.last
+                    + ",\"samplingPeriod\":" + snapshot.samplingPeriod
+                    + ",\"instrumentedSites\":" + snapshot.instrumentedSites + ",\"skippedSites\":" + snapshot.skippedSites
+                    + ",\"dropped\":" + snapshot.dropped + ",\"typePollution\":");
+            printJsonCounters(snapshot.typePollutionCounters, out);
+            out.print(",\"miss\":");
+            printJsonCounters(snapshot.missCounters, out);
+            out.print("}");
+        }
+        out.print("\n]\n");
+    }
+
+    private static void printJsonCounters(List<TraceDumpReader.Counter> counters, PrintWriter out) {
+        out.print("[");
+        for (int i = 0; i < counters.size(); i++) {
+            final TraceDumpReader.Counter counter = counters.get(i);
+            if (i > 0) {
+                out.print(",");
+            }
+            out.print("{\"class\":" + jsonOf(counter.clazz) + ",\"count\":" + counter.count + ",\"samples\":" + counter.samples
+                    + ",\"crossThreadCount\":" + counter.crossThreadCount + ",\"types\":[");
+            for (int j = 0; j < counter.seen.size(); j++) {
+                out.print((j > 0 ? "," : "") + jsonOf(counter.seen.get(j)));
+            }
+            out.print("],\"traces\":[");
+            for (int j = 0; j < counter.traces.size(); j++) {
+                final TraceDumpReader.Trace trace = counter.traces.get(j);
+                out.print((j > 0 ? "," : "") + "{\"trace\":" + jsonOf(trace.trace) + ",\"classes\":[");
+                for (int k = 0; k < trace.interfaceCounts.size(); k++) {
+                    final TraceDumpReader.ClassCount count = trace.interfaceCounts.get(k);
+                    out.print((k > 0 ? "," : "") + "{\"class\":" + jsonOf(count.interfaceClazz) + ",\"count\":" + count.count
+                            + ",\"crossThreadCount\":" + count.crossThreadCount + "}");
+                }
+                out.print("]}");
+            }
+            out.print("],\"threadPairs\":[");
+            for (int j = 0; j < counter.threadPairs.size(); j++) {
+                final TraceDumpReader.ThreadPair pair = counter.threadPairs.get(j);
+                out.print((j > 0 ? "," : "") + "{\"from\":" + jsonOf(pair.fromThread) + ",\"to\":" + jsonOf(pair.toThread)
+                        + ",\"count\":" + pair.count + "}");
+            }
+            out.print("],\"fullTraces\":[");
+            for (int j = 0; j < counter.fullStackTraces.size(); j++) {
+                final List<String> frames = counter.fullStackTraces.get(j);
+                out.print(j > 0 ? ",[" : "[");
+                for (int k = 0; k < frames.size(); k++) {
+                    out.print((k > 0 ? "," : "") + jsonOf(frames.get(k)));
+                }
+                out.print("]");
+            }
+            out.print("]}");
+        }
+        out.print("]");
+    }
+}
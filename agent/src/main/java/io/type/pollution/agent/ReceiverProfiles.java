@@ -0,0 +1,116 @@
+package io.type.pollution.agent;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Per {@link CallSiteRegistry} site profile of the concrete classes (by {@link ClassInfo} id) checked there, similar
+ * to the HotSpot type profile, which keeps 2 receiver types per bytecode (ie {@code TypeProfileWidth}).
+ * <p>
+ * Each site has a bounded set of {@link #WIDTH} slots, filled lock-free by CAS and never cleared: once full, the site is
+ * megamorphic and the JIT cannot replace its type checks with exact class comparisons, hence the slow path is
+ * really taken there, after C2 too.
+ * <p>
+ * Since a site can gain a receiver at most {@link #WIDTH} times, each of them bumps a global {@link #version()}, to let
+ * the reports drop the cached (and stale) receivers.
+ */
+final class ReceiverProfiles {
+
+    static final int MONOMORPHIC = 1;
+    static final int BIMORPHIC = 2;
+    static final int MEGAMORPHIC = 3;
+    private static final int WIDTH = MEGAMORPHIC;
+
+    // This MUST be a power of 2
+    private static final int CHUNK_SITES = 1024;
+    private static final int CHUNK_SHIFT = Integer.numberOfTrailingZeros(CHUNK_SITES);
+    private static final int MAX_CHUNKS = 4096;
+    private static final AtomicReferenceArray<AtomicIntegerArray> CHUNKS = new AtomicReferenceArray<>(MAX_CHUNKS);
+    private static final AtomicInteger VERSION = new AtomicInteger();
+
+    private ReceiverProfiles() {
+
+    }
+
+    private static AtomicIntegerArray chunkOf(int site, boolean create) {
+        final int chunkIndex = site >>> CHUNK_SHIFT;
+        if (chunkIndex >= MAX_CHUNKS) {
+            return null;
+        }
+        final AtomicIntegerArray chunk = CHUNKS.get(chunkIndex);
+        if (chunk != null || !create) {
+            return chunk;
+        }
+        final AtomicIntegerArray newChunk = new AtomicIntegerArray(CHUNK_SITES * WIDTH);
+        if (CHUNKS.compareAndSet(chunkIndex, null, newChunk)) {
+            return newChunk;
+        }
+        return CHUNKS.get(chunkIndex);
+    }
+
+    /**
+     * Records a type check of an instance of the {@code classId} class on {@code site}.
+     */
+    static void record(int site, int classId) {
+        final AtomicIntegerArray chunk = chunkOf(site, true);
+        if (chunk == null) {
+            return;
+        }
+        final int base = (site & (CHUNK_SITES - 1)) * WIDTH;
+        for (int i = 0; i < WIDTH; i++) {
+            final int receiver = chunk.get(base + i);
+            if (receiver == classId) {
+                return;
+            }
+            if (receiver == 0) {
+                if (chunk.compareAndSet(base + i, 0, classId)) {
+                    VERSION.incrementAndGet();
+                    return;
+                }
+                if (chunk.get(base + i) == classId) {
+                    return;
+                }
+            }
+        }
+        // megamorphic: nothing else to record
+    }
+
+    /**
+     * @return a version which changes each time a site gains a receiver
+     */
+    static int version() {
+        return VERSION.get();
+    }
+
+    /**
+     * @return the number of distinct concrete classes checked on {@code site}, up to {@link #MEGAMORPHIC}
+     */
+    static int receiversOf(int site) {
+        final AtomicIntegerArray chunk = site <= 0 ? null : chunkOf(site, false);
+        if (chunk == null) {
+            return 0;
+        }
+        final int base = (site & (CHUNK_SITES - 1)) * WIDTH;
+        int receivers = 0;
+        for (int i = 0; i < WIDTH; i++) {
+            if (chunk.get(base + i) != 0) {
+                receivers++;
+            }
+        }
+        return receivers;
+    }
+
+    static String stateOf(int receivers) {
+        switch (receivers) {
+            case 0:
+                return "unknown";
+            case MONOMORPHIC:
+                return "monomorphic";
+            case BIMORPHIC:
+                return "bimorphic";
+            default:
+                return "megamorphic";
+        }
+    }
+}
@@ -0,0 +1,281 @@
+package io.type.pollution.agent;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * Exact counters which never share a cache line between writers: each thread increments its own slab of counters,
+ * indexed by a slot allocated by the {@link Slots} of a table, and the slabs are summed up on read.
+ * <p>
+ * The slots are handed out in chunks of {@link #CHUNK_SLOTS}, each table owning its own chunks, and a slab allocates
+ * just the chunks its thread has incremented: its memory is proportional to the traces the thread has counted, not to
+ * all of them.
+ * <p>
+ * The chunks of a released table are zeroed and reused once each live thread has completed an increment since their
+ * release, ie once no increment of the released table can be in-flight anymore.
+ * <p>
+ * The slabs of the dead threads are folded into a single retired slab, while reading.
+ */
+final class ThreadCounterSlabs {
+
+    // this MUST be a power of 2
+    private static final int CHUNK_SLOTS = 16;
+    private static final int CHUNK_SHIFT = Integer.numberOfTrailingZeros(CHUNK_SLOTS);
+    // 64 bytes ie a cache line on each side of the counters of a chunk
+    private static final int PADDING = 8;
+    private static final int INITIAL_CHUNKS = 16;
+
+    private static final class Slab {
+        private static final AtomicLongFieldUpdater<Slab> INCREMENTS_UPDATER =
+                AtomicLongFieldUpdater.newUpdater(Slab.class, "increments");
+
+        private final int id;
+        private final WeakReference<Thread> owner;
+        // just the owner can write to it
+        private volatile AtomicLongArray[] chunks = new AtomicLongArray[INITIAL_CHUNKS];
+        // the increments completed by the owner, see FreeChunk#isQuiescent
+        private volatile long increments;
+
+        private Slab(int id, Thread owner) {
+            this.id = id;
+            this.owner = new WeakReference<>(owner);
+        }
+
+        private boolean isOwnerAlive() {
+            final Thread thread = owner.get();
+            return thread != null && thread.isAlive();
+        }
+
+        /**
+         * Called by the owner only.
+         */
+        private AtomicLongArray chunkOf(int chunk) {
+            AtomicLongArray[] chunks = this.chunks;
+            if (chunk < chunks.length) {
+                final AtomicLongArray counts = chunks[chunk];
+                if (counts != null) {
+                    return counts;
+                }
+            } else {
+                chunks = Arrays.copyOf(chunks, Math.max(chunks.length * 2, chunk + 1));
+                this.chunks = chunks;
+            }
+            final AtomicLongArray counts = new AtomicLongArray(PADDING + CHUNK_SLOTS + PADDING);
+            chunks[chunk] = counts;
+            return counts;
+        }
+
+        private AtomicLongArray existingChunkOf(int chunk) {
+            final AtomicLongArray[] chunks = this.chunks;
+            return chunk < chunks.length ? chunks[chunk] : null;
+        }
+
+        private long get(int slot) {
+            final AtomicLongArray counts = existingChunkOf(slot >>> CHUNK_SHIFT);
+            return counts == null ? 0 : counts.get(PADDING + (slot & (CHUNK_SLOTS - 1)));
+        }
+
+        private void clear(int chunk) {
+            final AtomicLongArray counts = existingChunkOf(chunk);
+            if (counts != null) {
+                for (int i = 0; i < CHUNK_SLOTS; i++) {
+                    counts.set(PADDING + i, 0);
+                }
+            }
+        }
+    }
+
+    /**
+     * A chunk released by a table, to be reused once quiescent.
+     */
+    private static final class FreeChunk {
+        private final int chunk;
+        // indexed by slab id: the increments of the slabs when the chunk has been released, or null if never used
+        private final long[] increments;
+
+        private FreeChunk(int chunk, long[] increments) {
+            this.chunk = chunk;
+            this.increments = increments;
+        }
+
+        /**
+         * An increment of the released table could be in-flight on a thread until it completes its next increment:
+         * the slabs created after the release can be in-flight on their first increment only.
+         */
+        private boolean isQuiescent() {
+            if (increments == null) {
+                return true;
+            }
+            for (Slab slab : SLABS) {
+                final long released = slab.id < increments.length ? increments[slab.id] : 0;
+                if (slab.increments <= released && slab.isOwnerAlive()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * The slots of a table, allocated without any global lock: each chunk is used by a single table.
+     */
+    static final class Slots {
+        private static final AtomicLongFieldUpdater<Slots> RANGE_UPDATER =
+                AtomicLongFieldUpdater.newUpdater(Slots.class, "range");
+        private static final long NO_RANGE = -1;
+
+        // (chunk << 32) | the offset of the next slot of the chunk
+        private volatile long range = NO_RANGE;
+        // guarded by this
+        private int[] chunks = new int[1];
+        private int size;
+
+        int next() {
+            while (true) {
+                final long range = this.range;
+                if (range != NO_RANGE && (int) range < CHUNK_SLOTS) {
+                    if (RANGE_UPDATER.compareAndSet(this, range, range + 1)) {
+                        return (int) (range >>> 32) << CHUNK_SHIFT | (int) range;
+                    }
+                    continue;
+                }
+                final int chunk = acquireChunk();
+                if (RANGE_UPDATER.compareAndSet(this, range, (long) chunk << 32 | 1)) {
+                    add(chunk);
+                    return chunk << CHUNK_SHIFT;
+                }
+                // never used: it can be reused right away
+                FREE_CHUNKS.offer(new FreeChunk(chunk, null));
+            }
+        }
+
+        private synchronized void add(int chunk) {
+            if (size == chunks.length) {
+                chunks = Arrays.copyOf(chunks, size * 2);
+            }
+            chunks[size] = chunk;
+            size++;
+        }
+
+        /**
+         * Releases the chunks: the table MUST NOT allocate any slot anymore, although a racing insert can leak one.
+         */
+        synchronized void release() {
+            for (int i = 0; i < size; i++) {
+                releaseChunk(chunks[i]);
+            }
+            size = 0;
+        }
+    }
+
+    private static final AtomicInteger NEXT_CHUNK = new AtomicInteger();
+    private static final AtomicInteger NEXT_SLAB_ID = new AtomicInteger();
+    private static final ConcurrentLinkedQueue<FreeChunk> FREE_CHUNKS = new ConcurrentLinkedQueue<>();
+    private static final ConcurrentLinkedQueue<Slab> SLABS = new ConcurrentLinkedQueue<>();
+    private static final ThreadLocal<Slab> SLAB = ThreadLocal.withInitial(() -> {
+        final Slab slab = new Slab(NEXT_SLAB_ID.getAndIncrement(), Thread.currentThread());
+        SLABS.add(slab);
+        return slab;
+    });
+    // guarded by SLABS
+    private static long[] RETIRED = new long[INITIAL_CHUNKS * CHUNK_SLOTS];
+
+    private ThreadCounterSlabs() {
+
+    }
+
+    private static void releaseChunk(int chunk) {
+        // the slabs created after this are covered by the FreeChunk default
+        final long[] increments = new long[NEXT_SLAB_ID.get()];
+        for (Slab slab : SLABS) {
+            if (slab.id < increments.length) {
+                increments[slab.id] = slab.increments;
+            }
+        }
+        FREE_CHUNKS.offer(new FreeChunk(chunk, increments));
+    }
+
+    private static int acquireChunk() {
+        final FreeChunk free = FREE_CHUNKS.poll();
+        if (free != null) {
+            if (free.isQuiescent()) {
+                clear(free.chunk);
+                return free.chunk;
+            }
+            // let's retry with the next allocation
+            FREE_CHUNKS.offer(free);
+        }
+        return NEXT_CHUNK.getAndIncrement();
+    }
+
+    private static void clear(int chunk) {
+        synchronized (SLABS) {
+            for (Slab slab : SLABS) {
+                slab.clear(chunk);
+            }
+            final int from = chunk << CHUNK_SHIFT;
+            if (from < RETIRED.length) {
+                Arrays.fill(RETIRED, from, from + CHUNK_SLOTS, 0);
+            }
+        }
+    }
+
+    static void increment(int slot) {
+        final Slab slab = SLAB.get();
+        final AtomicLongArray counts = slab.chunkOf(slot >>> CHUNK_SHIFT);
+        final int index = PADDING + (slot & (CHUNK_SLOTS - 1));
+        // single writer: no need of any atomic RMW
+        counts.lazySet(index, counts.getPlain(index) + 1);
+        // ordered after the increment, to let the released chunks be reused
+        Slab.INCREMENTS_UPDATER.lazySet(slab, slab.increments + 1);
+    }
+
+    /**
+     * Adds {@code delta} to the count of {@code slot}, as if incremented by an already dead thread.
+     */
+    static void add(int slot, long delta) {
+        synchronized (SLABS) {
+            if (RETIRED.length <= slot) {
+                RETIRED = Arrays.copyOf(RETIRED, Math.max(RETIRED.length * 2, (slot | (CHUNK_SLOTS - 1)) + 1));
+            }
+            RETIRED[slot] += delta;
+        }
+    }
+
+    static long sum(int slot) {
+        synchronized (SLABS) {
+            long sum = slot < RETIRED.length ? RETIRED[slot] : 0;
+            for (Iterator<Slab> it = SLABS.iterator(); it.hasNext(); ) {
+                final Slab slab = it.next();
+                if (!slab.isOwnerAlive()) {
+                    it.remove();
+                    retire(slab);
+                }
+                sum += slab.get(slot);
+            }
+            return sum;
+        }
+    }
+
+    private static void retire(Slab slab) {
+        final AtomicLongArray[] chunks = slab.chunks;
+        for (int chunk = 0; chunk < chunks.length; chunk++) {
+            final AtomicLongArray counts = chunks[chunk];
+            if (counts == null) {
+                continue;
+            }
+            final int from = chunk << CHUNK_SHIFT;
+            if (RETIRED.length < from + CHUNK_SLOTS) {
+                RETIRED = Arrays.copyOf(RETIRED, Math.max(RETIRED.length * 2, from + CHUNK_SLOTS));
+            }
+            for (int i = 0; i < CHUNK_SLOTS; i++) {
+                RETIRED[from + i] += counts.get(PADDING + i);
+            }
+        }
+    }
+}
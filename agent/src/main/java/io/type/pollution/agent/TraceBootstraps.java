@@ -0,0 +1,191 @@
+package io.type.pollution.agent;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.lang.invoke.SwitchPoint;
+
+/**
+ * Bootstrap methods of the invokedynamic probes emitted by {@link ByteBuddyUtils}.
+ * <p>
+ * Each probe links to the original type check (or a no-op) while tracing is disabled and to the
+ * {@link TraceInstanceOf} tracing logic while it's enabled: the linked target is guarded by a {@link SwitchPoint}
+ * which the JIT treats as a constant, and any tracing state change invalidates it, making the probes to relink
+ * lazily on their next execution.
+ */
+public final class TraceBootstraps {
+
+    private static final class TracingState {
+        private final boolean tracing;
+        private final SwitchPoint switchPoint = new SwitchPoint();
+
+        private TracingState(boolean tracing) {
+            this.tracing = tracing;
+        }
+    }
+
+    private static volatile TracingState STATE = new TracingState(false);
+
+    private static final MethodHandle IS_INSTANCE;
+    private static final MethodHandle TRACE_CHECKCAST;
+    private static final MethodHandle TRACE_INSTANCE_OF;
+    private static final MethodHandle TRACE_CAST;
+    private static final MethodHandle TRACE_IS_INSTANCE;
+    private static final MethodHandle TRACE_IS_ASSIGNABLE_FROM;
+    private static final MethodHandle ARRAY_STORE;
+    private static final MethodHandle TRACE_AASTORE;
+    private static final MethodHandle TRACE_TYPE_SWITCH;
+
+    static {
+        final MethodHandles.Lookup lookup = MethodHandles.lookup();
+        try {
+            IS_INSTANCE = lookup.findVirtual(Class.class, "isInstance",
+                    MethodType.methodType(boolean.class, Object.class));
+            TRACE_CHECKCAST = lookup.findStatic(TraceInstanceOf.class, "onCheckcast",
+                    MethodType.methodType(void.class, Object.class, Class.class, int.class));
+            TRACE_INSTANCE_OF = lookup.findStatic(TraceInstanceOf.class, "onInstanceOf",
+                    MethodType.methodType(boolean.class, Object.class, Class.class, int.class));
+            TRACE_CAST = lookup.findStatic(TraceInstanceOf.class, "onCast",
+                    MethodType.methodType(void.class, Class.class, Object.class, int.class));
+            TRACE_IS_INSTANCE = lookup.findStatic(TraceInstanceOf.class, "onIsInstance",
+                    MethodType.methodType(boolean.class, Class.class, Object.class, int.class));
+            TRACE_IS_ASSIGNABLE_FROM = lookup.findStatic(TraceInstanceOf.class, "onIsAssignableFrom",
+                    MethodType.methodType(boolean.class, Class.class, Class.class, boolean.class, int.class));
+            ARRAY_STORE = MethodHandles.arrayElementSetter(Object[].class);
+            TRACE_AASTORE = lookup.findStatic(TraceInstanceOf.class, "onAastore",
+                    MethodType.methodType(void.class, Object[].class, int.class, Object.class, int.class));
+            TRACE_TYPE_SWITCH = lookup.findStatic(TraceInstanceOf.class, "onTypeSwitch",
+                    MethodType.methodType(void.class, Object.class, int.class, int[].class, Class[].class, int.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private TraceBootstraps() {
+
+    }
+
+    static boolean isTracing() {
+        return STATE.tracing;
+    }
+
+    /**
+     * @return {@code true} if the tracing state has changed, {@code false} otherwise
+     */
+    static synchronized boolean setTracing(boolean tracing) {
+        final TracingState current = STATE;
+        if (current.tracing == tracing) {
+            return false;
+        }
+        STATE = new TracingState(tracing);
+        SwitchPoint.invalidateAll(new SwitchPoint[]{current.switchPoint});
+        return true;
+    }
+
+    static final class ProbeCallSite extends MutableCallSite {
+
+        private static final MethodHandle RELINK_AND_INVOKE;
+
+        static {
+            try {
+                RELINK_AND_INVOKE = MethodHandles.lookup().findVirtual(ProbeCallSite.class, "relinkAndInvoke",
+                        MethodType.methodType(Object.class, Object[].class));
+            } catch (NoSuchMethodException | IllegalAccessException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        private final MethodHandle disabled;
+        private final MethodHandle enabled;
+        private final MethodHandle relink;
+
+        ProbeCallSite(MethodType type, MethodHandle disabled, MethodHandle enabled) {
+            super(type);
+            this.disabled = disabled.asType(type);
+            this.enabled = enabled.asType(type);
+            this.relink = RELINK_AND_INVOKE.bindTo(this)
+                    .asCollector(Object[].class, type.parameterCount())
+                    .asType(type);
+            relink();
+        }
+
+        private MethodHandle relink() {
+            final TracingState state = STATE;
+            final MethodHandle target = state.switchPoint.guardWithTest(state.tracing ? enabled : disabled, relink);
+            setTarget(target);
+            return target;
+        }
+
+        Object relinkAndInvoke(Object[] args) throws Throwable {
+            return relink().invokeWithArguments(args);
+        }
+    }
+
+    /**
+     * Bootstrap method of the {@code checkcast} and {@code instanceof} probes.
+     */
+    public static CallSite typeCheck(MethodHandles.Lookup lookup, String name, MethodType type,
+                                     Class<?> checkedType, int site) {
+        switch (name) {
+            case "checkcast":
+                return new ProbeCallSite(type, MethodHandles.empty(type),
+                        MethodHandles.insertArguments(TRACE_CHECKCAST, 1, checkedType, site));
+            case "instanceOf":
+                return new ProbeCallSite(type, IS_INSTANCE.bindTo(checkedType),
+                        MethodHandles.insertArguments(TRACE_INSTANCE_OF, 1, checkedType, site));
+            default:
+                throw new IllegalArgumentException("unknown type check probe: " + name);
+        }
+    }
+
+    /**
+     * Bootstrap method of the {@link Class#cast}, {@link Class#isInstance} and {@link Class#isAssignableFrom} probes.
+     */
+    public static CallSite classCheck(MethodHandles.Lookup lookup, String name, MethodType type, int site) {
+        switch (name) {
+            case "cast":
+                return new ProbeCallSite(type, MethodHandles.empty(type),
+                        MethodHandles.insertArguments(TRACE_CAST, 2, site));
+            case "isInstance":
+                return new ProbeCallSite(type, IS_INSTANCE,
+                        MethodHandles.insertArguments(TRACE_IS_INSTANCE, 2, site));
+            case "isAssignableFrom":
+                return new ProbeCallSite(type,
+                        MethodHandles.dropArguments(MethodHandles.identity(boolean.class), 0, Class.class, Class.class),
+                        MethodHandles.insertArguments(TRACE_IS_ASSIGNABLE_FROM, 3, site));
+            default:
+                throw new IllegalArgumentException("unknown class check probe: " + name);
+        }
+    }
+
+    /**
+     * Bootstrap method of the {@code aastore} probes, which perform the store too.
+     */
+    public static CallSite arrayStoreCheck(MethodHandles.Lookup lookup, String name, MethodType type, int site) {
+        if (!"aastore".equals(name)) {
+            throw new IllegalArgumentException("unknown array store probe: " + name);
+        }
+        return new ProbeCallSite(type, ARRAY_STORE, MethodHandles.insertArguments(TRACE_AASTORE, 3, site));
+    }
+
+    /**
+     * Bootstrap method of the {@code SwitchBootstraps::typeSwitch} probes, with the class labels of the switch as
+     * (label index, label) pairs.
+     */
+    public static CallSite switchCheck(MethodHandles.Lookup lookup, String name, MethodType type, int site,
+                                       Object... indexedLabels) {
+        if (!"typeSwitch".equals(name)) {
+            throw new IllegalArgumentException("unknown switch probe: " + name);
+        }
+        final int[] indexes = new int[indexedLabels.length / 2];
+        final Class<?>[] labels = new Class<?>[indexes.length];
+        for (int i = 0; i < indexes.length; i++) {
+            indexes[i] = (Integer) indexedLabels[2 * i];
+            labels[i] = (Class<?>) indexedLabels[2 * i + 1];
+        }
+        return new ProbeCallSite(type, MethodHandles.empty(type),
+                MethodHandles.insertArguments(TRACE_TYPE_SWITCH, 2, indexes, labels, site));
+    }
+}
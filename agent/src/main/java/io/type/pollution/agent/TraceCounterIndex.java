@@ -0,0 +1,188 @@
+package io.type.pollution.agent;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Incrementally updated index of the counters of a kind, ordered by their last computed count, to build the reports
+ * without walking (and snapshotting) all of them.
+ * <p>
+ * A counter is queued as dirty on its first update since the last report: each report just refreshes the position of
+ * the dirty counters and reuses the cached snapshots of the top ones which didn't change, costing
+ * O(changed log N + K log K), instead of O(N) {@code count()} and {@code snapshot()}.
+ * <p>
+ * The snapshots are cached just for the top K counters of the last report with a finite limit: a counter falling out
+ * of it drops its snapshot, while without a limit none is cached, to not keep a copy of all of them between reports.
+ * The cached snapshots are dropped too once a site gains a receiver, see {@link ReceiverProfiles#version()}.
+ * <p>
+ * With bounded traces, the refresh of a dirty counter lets its heaviest traces over the bounds take the place of its
+ * lightest bounded ones, too.
+ * <p>
+ * If tracking the trace counts, the refresh of a dirty counter reads the counts of its traces too, to let the site
+ * reports merge the ones of all the counters without snapshotting them.
+ * <p>
+ * If tracking the changes, the refreshed counters are collected too, to let the rate windows read just the counters
+ * changed since their last roll.
+ */
+final class TraceCounterIndex {
+
+    private static final Comparator<TraceInstanceOf.TraceCounter> BY_COUNT =
+            Comparator.<TraceInstanceOf.TraceCounter>comparingLong(counter -> counter.indexedCount)
+                    .reversed()
+                    .thenComparingLong(counter -> counter.indexId);
+
+    private final ConcurrentLinkedQueue<TraceInstanceOf.TraceCounter> dirty = new ConcurrentLinkedQueue<>();
+    // guarded by this
+    private final TreeSet<TraceInstanceOf.TraceCounter> byCount = new TreeSet<>(BY_COUNT);
+    // guarded by this: the counters with a cached snapshot
+    private List<TraceInstanceOf.TraceCounter> cached = Collections.emptyList();
+    // guarded by this: the ReceiverProfiles version of the cached snapshots
+    private int cachedReceiversVersion = ReceiverProfiles.version();
+    private final boolean traceCounts;
+    // guarded by this: the counters refreshed since the last forEachChanged, if tracking the changes
+    private final Set<TraceInstanceOf.TraceCounter> changed;
+
+    TraceCounterIndex(boolean traceCounts, boolean changes) {
+        this.traceCounts = traceCounts;
+        this.changed = changes ? Collections.newSetFromMap(new IdentityHashMap<>()) : null;
+    }
+
+    /**
+     * Called once by a counter, on its first update since it has been refreshed.
+     */
+    void markDirty(TraceInstanceOf.TraceCounter counter) {
+        dirty.offer(counter);
+    }
+
+    private void refresh() {
+        TraceInstanceOf.TraceCounter counter;
+        while ((counter = dirty.poll()) != null) {
+            // clear it before reading the count: the updates racing with it would queue it again
+            counter.clearDirty();
+            if (counter.indexedCount > 0) {
+                byCount.remove(counter);
+            }
+            counter.cachedSnapshot = null;
+            if (Agent.BOUNDED_TRACES) {
+                counter.promoteOverflowTraces();
+            }
+            counter.indexedCount = counter.count();
+            if (counter.indexedCount > 0) {
+                byCount.add(counter);
+            }
+            if (traceCounts) {
+                counter.indexedTraceCounts = counter.indexedCount > 0 ? counter.traceCounts() : null;
+            }
+            if (changed != null) {
+                changed.add(counter);
+            }
+        }
+    }
+
+    private static Set<TraceInstanceOf.TraceCounter> identitySetOf(List<TraceInstanceOf.TraceCounter> counters) {
+        final Set<TraceInstanceOf.TraceCounter> set = Collections.newSetFromMap(new IdentityHashMap<>(counters.size()));
+        set.addAll(counters);
+        return set;
+    }
+
+    /**
+     * Drops the cached snapshots which are not needed by the next reports.
+     */
+    private void uncacheSnapshots(int limit, List<TraceInstanceOf.TraceCounter> top, List<TraceInstanceOf.TraceCounter> stale) {
+        if (limit != Integer.MAX_VALUE) {
+            // the counters fallen out of the top K
+            final Set<TraceInstanceOf.TraceCounter> retained = identitySetOf(top);
+            for (TraceInstanceOf.TraceCounter counter : cached) {
+                if (!retained.contains(counter)) {
+                    counter.cachedSnapshot = null;
+                }
+            }
+            cached = top;
+            return;
+        }
+        // the ones just built, unless still in the top K of the last report with a finite limit
+        final Set<TraceInstanceOf.TraceCounter> retained = identitySetOf(cached);
+        for (TraceInstanceOf.TraceCounter counter : stale) {
+            if (!retained.contains(counter)) {
+                counter.cachedSnapshot = null;
+            }
+        }
+    }
+
+    /**
+     * Visits (once) the counters changed since the last call, if tracking the changes.
+     */
+    synchronized void forEachChanged(Consumer<? super TraceInstanceOf.TraceCounter> consumer) {
+        refresh();
+        if (changed == null) {
+            return;
+        }
+        changed.forEach(consumer);
+        changed.clear();
+    }
+
+    /**
+     * Visits the trace counts of each counter with a count, if tracking them.
+     */
+    synchronized void forEachTraceCounts(BiConsumer<Class<?>, TypeCheckCost.TraceCount[]> consumer) {
+        refresh();
+        for (TraceInstanceOf.TraceCounter counter : byCount) {
+            final TypeCheckCost.TraceCount[] traceCounts = counter.indexedTraceCounts;
+            if (traceCounts != null) {
+                consumer.accept(counter.clazz(), traceCounts);
+            }
+        }
+    }
+
+    /**
+     * @return the snapshots of (up to) the {@code limit} counters with the highest count, if greater than
+     * {@code minUpdateCount}, ordered by descending update count
+     */
+    synchronized List<TraceInstanceOf.TraceCounter.Snapshot> orderedSnapshots(int minUpdateCount, int limit, boolean parallel) {
+        refresh();
+        // read before building the snapshots: a receiver recorded meanwhile invalidates them on the next report
+        final int receiversVersion = ReceiverProfiles.version();
+        if (receiversVersion != cachedReceiversVersion) {
+            // the cached snapshots report the receivers of their sites too, which can have changed without any update
+            for (TraceInstanceOf.TraceCounter counter : cached) {
+                counter.cachedSnapshot = null;
+            }
+            cachedReceiversVersion = receiversVersion;
+        }
+        final int minCount = Math.max(0, minUpdateCount);
+        final List<TraceInstanceOf.TraceCounter> top = new ArrayList<>();
+        final List<TraceInstanceOf.TraceCounter> stale = new ArrayList<>();
+        for (TraceInstanceOf.TraceCounter counter : byCount) {
+            if (top.size() >= limit || counter.indexedCount <= minCount) {
+                break;
+            }
+            top.add(counter);
+            if (counter.cachedSnapshot == null) {
+                stale.add(counter);
+            }
+        }
+        if (parallel && stale.size() > 1) {
+            stale.parallelStream().forEach(TraceInstanceOf.TraceCounter::cacheSnapshot);
+        } else {
+            stale.forEach(TraceInstanceOf.TraceCounter::cacheSnapshot);
+        }
+        final List<TraceInstanceOf.TraceCounter.Snapshot> snapshots = new ArrayList<>(top.size());
+        for (TraceInstanceOf.TraceCounter counter : top) {
+            final TraceInstanceOf.TraceCounter.Snapshot snapshot = counter.cachedSnapshot;
+            if (snapshot != null) {
+                snapshots.add(snapshot);
+            }
+        }
+        uncacheSnapshots(limit, top, stale);
+        snapshots.sort(Comparator.reverseOrder());
+        return snapshots;
+    }
+}
@@ -0,0 +1,411 @@
+package io.type.pollution.agent;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * Lock-free open-addressing (linear probing) table of counters keyed by a non-zero packed {@code long}, with the
+ * counters stored inline.
+ * <p>
+ * Resizing doesn't migrate the existing entries: a bigger table is installed as the current one, linked to the
+ * previous one(s) and new keys are inserted there only. Since the counts of a key can be spread across the chain
+ * of tables, readers merge them, but never block the writers.
+ * <p>
+ * With exact counting, the inline value is the {@link ThreadCounterSlabs} slot (+1) of the key, instead of its count,
+ * and it's the same along the whole chain of tables.
+ * <p>
+ * A bounded table rejects new keys once it holds {@code maxKeys} distinct keys, or once the (shared) budget of keys
+ * is exhausted: the keys are never removed in place, but a copy of the table can replace some of them, see
+ * {@link #withReplaced}.
+ */
+final class TraceCounterTable {
+
+    interface EntryConsumer {
+        void accept(long key, long count);
+    }
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private static final class Table {
+        private final AtomicLongArray keys;
+        private final AtomicLongArray values;
+        private final AtomicInteger size = new AtomicInteger();
+        private final int mask;
+        private final int resizeThreshold;
+        private final Table previous;
+
+        private Table(int capacity, Table previous) {
+            this.keys = new AtomicLongArray(capacity);
+            this.values = new AtomicLongArray(capacity);
+            this.mask = capacity - 1;
+            this.resizeThreshold = (capacity >> 1) + (capacity >> 2);
+            this.previous = previous;
+        }
+
+        private int capacity() {
+            return mask + 1;
+        }
+
+        private int indexOf(long key) {
+            int index = hash(key) & mask;
+            for (int i = 0; i <= mask; i++) {
+                final long k = keys.get(index);
+                if (k == key) {
+                    return index;
+                }
+                if (k == 0) {
+                    return -1;
+                }
+                index = (index + 1) & mask;
+            }
+            return -1;
+        }
+    }
+
+    private static final AtomicReferenceFieldUpdater<TraceCounterTable, Table> CURRENT_UPDATER =
+            AtomicReferenceFieldUpdater.newUpdater(TraceCounterTable.class, Table.class, "current");
+
+    private final boolean exact;
+    // null if not exact
+    private final ThreadCounterSlabs.Slots slots;
+    private final int maxKeys;
+    // null if unbounded
+    private final AtomicLong keysBudget;
+    private final AtomicInteger keys = new AtomicInteger();
+    private volatile Table current = new Table(INITIAL_CAPACITY, null);
+
+    TraceCounterTable(boolean exact) {
+        this(exact, Integer.MAX_VALUE, null);
+    }
+
+    /**
+     * @param keysBudget the remaining keys which can be inserted, shared with other tables, or {@code null}
+     */
+    TraceCounterTable(boolean exact, int maxKeys, AtomicLong keysBudget) {
+        this(exact, exact ? new ThreadCounterSlabs.Slots() : null, maxKeys, keysBudget);
+    }
+
+    private TraceCounterTable(boolean exact, ThreadCounterSlabs.Slots slots, int maxKeys, AtomicLong keysBudget) {
+        this.exact = exact;
+        this.slots = slots;
+        this.maxKeys = maxKeys;
+        this.keysBudget = keysBudget;
+    }
+
+    private boolean tryAcquireKey() {
+        if (keys.incrementAndGet() > maxKeys) {
+            keys.decrementAndGet();
+            return false;
+        }
+        if (keysBudget != null && keysBudget.getAndDecrement() <= 0) {
+            keysBudget.incrementAndGet();
+            keys.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    private void releaseKey() {
+        keys.decrementAndGet();
+        if (keysBudget != null) {
+            keysBudget.incrementAndGet();
+        }
+    }
+
+    /**
+     * Releases the keys of this table to the shared budget and, with exact counting, its {@link ThreadCounterSlabs}
+     * slots: the table MUST NOT be used anymore.
+     */
+    void release() {
+        if (keysBudget != null) {
+            keysBudget.addAndGet(keys.getAndSet(0));
+        }
+        if (exact) {
+            slots.release();
+        }
+    }
+
+    private static int hash(long key) {
+        // murmur3 fmix64
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    /**
+     * @return {@code false} if {@code key} has been rejected, because the table is full
+     */
+    boolean increment(long key) {
+        assert key != 0;
+        Table table = current;
+        int index = table.indexOf(key);
+        if (index < 0) {
+            table = insert(key);
+            if (table == null) {
+                return false;
+            }
+            index = table.indexOf(key);
+        }
+        if (exact) {
+            ThreadCounterSlabs.increment(slotAt(table, index));
+        } else {
+            table.values.lazySet(index, table.values.get(index) + 1);
+        }
+        return true;
+    }
+
+    private static int slotAt(Table table, int index) {
+        long value;
+        while ((value = table.values.get(index)) == 0) {
+            // the inserting thread has yet to publish the slot
+            Thread.onSpinWait();
+        }
+        return (int) (value - 1);
+    }
+
+    private static long slotOf(Table table, long key) {
+        for (Table t = table; t != null; t = t.previous) {
+            final int index = t.indexOf(key);
+            if (index >= 0) {
+                return slotAt(t, index);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the table containing {@code key}, after inserting it, or {@code null} if {@code key} has been rejected
+     */
+    private Table insert(long key) {
+        while (true) {
+            final Table table = current;
+            if (table.size.get() >= table.resizeThreshold) {
+                resize(table);
+                continue;
+            }
+            // a key of a previous table doesn't count as a new one
+            final boolean newKey = table.previous == null || !containsKey(table.previous, null, key);
+            if (newKey && !tryAcquireKey()) {
+                return null;
+            }
+            int index = hash(key) & table.mask;
+            for (int i = 0; i <= table.mask; i++) {
+                final long k = table.keys.get(index);
+                if (k == key) {
+                    if (newKey) {
+                        releaseKey();
+                    }
+                    return table;
+                }
+                if (k == 0) {
+                    if (table.keys.compareAndSet(index, 0, key)) {
+                        table.size.incrementAndGet();
+                        if (exact) {
+                            final long existingSlot = slotOf(table.previous, key);
+                            final long slot = existingSlot >= 0 ? existingSlot : slots.next();
+                            table.values.set(index, slot + 1);
+                        }
+                        return table;
+                    }
+                    if (table.keys.get(index) == key) {
+                        if (newKey) {
+                            releaseKey();
+                        }
+                        return table;
+                    }
+                }
+                index = (index + 1) & table.mask;
+            }
+            if (newKey) {
+                releaseKey();
+            }
+            // unlikely, but a full table just need to be resized
+            resize(table);
+        }
+    }
+
+    private void resize(Table table) {
+        if (current != table) {
+            return;
+        }
+        CURRENT_UPDATER.compareAndSet(this, table, new Table(table.capacity() * 2, table));
+    }
+
+    private long valueOf(Table table, int index) {
+        if (exact) {
+            return ThreadCounterSlabs.sum(slotAt(table, index));
+        }
+        return table.values.get(index);
+    }
+
+    /**
+     * @return the count of {@code key}, merged across the chain of tables
+     */
+    long get(long key) {
+        long count = 0;
+        long visitedSlot = -1;
+        for (Table table = current; table != null; table = table.previous) {
+            final int index = table.indexOf(key);
+            if (index < 0) {
+                continue;
+            }
+            if (!exact) {
+                count += table.values.get(index);
+            } else {
+                final int slot = slotAt(table, index);
+                if (slot != visitedSlot) {
+                    count += ThreadCounterSlabs.sum(slot);
+                    visitedSlot = slot;
+                }
+            }
+        }
+        return count;
+    }
+
+    private static boolean containsKey(Table from, Table to, long key) {
+        for (Table t = from; t != to; t = t.previous) {
+            if (t.indexOf(key) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Visits each key once, with its count merged across the chain of tables.
+     */
+    void forEach(EntryConsumer consumer) {
+        final Table newest = current;
+        for (Table table = newest; table != null; table = table.previous) {
+            final AtomicLongArray keys = table.keys;
+            for (int i = 0; i < keys.length(); i++) {
+                final long key = keys.get(i);
+                if (key == 0) {
+                    continue;
+                }
+                // already visited while iterating a newer table
+                if (containsKey(newest, table, key)) {
+                    continue;
+                }
+                long count = valueOf(table, i);
+                for (Table older = table.previous; older != null; older = older.previous) {
+                    final int index = older.indexOf(key);
+                    if (index < 0) {
+                        continue;
+                    }
+                    if (!exact) {
+                        count += older.values.get(index);
+                    } else if (slotAt(older, index) != slotAt(table, i)) {
+                        // a racing insert on resize has allocated a different slot for the same key
+                        count += valueOf(older, index);
+                    }
+                }
+                consumer.accept(key, count);
+            }
+        }
+    }
+
+    /**
+     * Copies this table into a new one, which takes over its keys and slots, replacing each {@code evicted[i]} key
+     * with {@code promoted[i]}, starting from {@code promotedCounts[i]}: this table MUST NOT be used (nor released)
+     * anymore and, unless exact, its updates racing with the copy are lost.
+     */
+    TraceCounterTable withReplaced(long[] evicted, long[] promoted, long[] promotedCounts) {
+        assert evicted.length == promoted.length && promoted.length == promotedCounts.length;
+        final TraceCounterTable copy = new TraceCounterTable(exact, slots, maxKeys, keysBudget);
+        final int entries = keys.get() + promoted.length;
+        int capacity = INITIAL_CAPACITY;
+        while ((capacity >> 1) + (capacity >> 2) <= entries) {
+            capacity <<= 1;
+        }
+        final Table copyTable = new Table(capacity, null);
+        final Table newest = current;
+        for (Table table = newest; table != null; table = table.previous) {
+            final AtomicLongArray keys = table.keys;
+            for (int i = 0; i < keys.length(); i++) {
+                final long key = keys.get(i);
+                if (key == 0 || containsKey(newest, table, key) || indexOf(evicted, key) >= 0) {
+                    continue;
+                }
+                long value;
+                if (exact) {
+                    // the slots of a racing insert on resize, if any, are left behind
+                    value = slotAt(table, i) + 1;
+                } else {
+                    value = table.values.get(i);
+                    for (Table older = table.previous; older != null; older = older.previous) {
+                        final int index = older.indexOf(key);
+                        if (index >= 0) {
+                            value += older.values.get(index);
+                        }
+                    }
+                }
+                put(copyTable, key, value);
+            }
+        }
+        for (int i = 0; i < promoted.length; i++) {
+            // inserted by a racing update, once some keys budget has been released
+            if (copyTable.indexOf(promoted[i]) >= 0) {
+                continue;
+            }
+            if (exact) {
+                final int slot = slots.next();
+                ThreadCounterSlabs.add(slot, promotedCounts[i]);
+                put(copyTable, promoted[i], slot + 1);
+            } else {
+                put(copyTable, promoted[i], promotedCounts[i]);
+            }
+        }
+        // as many keys have been promoted as evicted
+        copy.keys.set(keys.get());
+        copy.current = copyTable;
+        return copy;
+    }
+
+    private static int indexOf(long[] keys, long key) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] == key) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Single-threaded insert into a table yet to be published.
+     */
+    private static void put(Table table, long key, long value) {
+        int index = hash(key) & table.mask;
+        while (table.keys.get(index) != 0) {
+            index = (index + 1) & table.mask;
+        }
+        table.keys.set(index, key);
+        table.values.set(index, value);
+        table.size.incrementAndGet();
+    }
+
+    long count() {
+        if (exact) {
+            final long[] count = {0};
+            forEach((key, keyCount) -> count[0] += keyCount);
+            return count[0];
+        }
+        long count = 0;
+        for (Table table = current; table != null; table = table.previous) {
+            final AtomicLongArray values = table.values;
+            for (int i = 0; i < values.length(); i++) {
+                count += values.get(i);
+            }
+        }
+        return count;
+    }
+
+    boolean isEmpty() {
+        return current.size.get() == 0 && current.previous == null;
+    }
+}
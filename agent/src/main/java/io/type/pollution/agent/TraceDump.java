@@ -0,0 +1,67 @@
+package io.type.pollution.agent;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Binary dump format of the reports, made of a header followed by a stream of records:
+ * <pre>
+ * header:   MAGIC, VERSION (1 byte)
+ * record:   tag (1 byte), payload length (varint), payload
+ * STRING:   id (varint), UTF-8 length (varint), UTF-8 bytes
+ * SNAPSHOT: timestamp ms (varint), last (1 byte), sampling period, instrumented sites, skipped sites, dropped (varints),
+ *           type pollution counters, miss counters
+ * counters: count (varint), counter*
+ * counter:  class (string id), count, samples, cross-thread count, seen count (varints), seen interface (string id)*,
+ *           trace count (varint), trace*, thread pair count (varint), thread pair*, full trace count (varint),
+ *           full trace*
+ * trace:    trace (string id), class count count (varint), [interface (string id), count, cross-thread count]*
+ * thread pair: from thread (string id), to thread (string id), count
+ * full trace: frame count (varint), frame (string id)*
+ * </pre>
+ * All the strings are interned: each one is defined by a STRING record, before the first record referencing it.
+ * Unknown records can be skipped using their payload length.
+ * <p>
+ * Many streams can be appended to the same file: each one starts with its own header and string table.
+ */
+final class TraceDump {
+
+    static final byte[] MAGIC = {'T', 'P', 'D', 'M'};
+    static final int VERSION = 1;
+    static final int STRING = 1;
+    static final int SNAPSHOT = 2;
+
+    private TraceDump() {
+
+    }
+
+    static int varintSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    static void putVarint(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    static long readVarint(DataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final byte b = in.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("malformed varint");
+    }
+}
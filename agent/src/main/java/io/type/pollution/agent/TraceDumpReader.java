@@ -0,0 +1,252 @@
+package io.type.pollution.agent;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads back the {@link TraceDump} format written by {@link TraceDumpWriter}.
+ */
+final class TraceDumpReader implements AutoCloseable {
+
+    static final class Snapshot {
+        final long timestampMs;
+        final boolean last;
+        final long samplingPeriod;
+        final long instrumentedSites;
+        final long skippedSites;
+        final long dropped;
+        final List<Counter> typePollutionCounters;
+        final List<Counter> missCounters;
+
+        private Snapshot(long timestampMs, boolean last, long samplingPeriod, long instrumentedSites, long skippedSites,
+                         long dropped, List<Counter> typePollutionCounters, List<Counter> missCounters) {
+            this.timestampMs = timestampMs;
+            this.last = last;
+            this.samplingPeriod = samplingPeriod;
+            this.instrumentedSites = instrumentedSites;
+            this.skippedSites = skippedSites;
+            this.dropped = dropped;
+            this.typePollutionCounters = typePollutionCounters;
+            this.missCounters = missCounters;
+        }
+    }
+
+    static final class Counter {
+        final String clazz;
+        final long count;
+        final long samples;
+        final long crossThreadCount;
+        final List<String> seen;
+        final List<Trace> traces;
+        final List<ThreadPair> threadPairs;
+        final List<List<String>> fullStackTraces;
+
+        private Counter(String clazz, long count, long samples, long crossThreadCount, List<String> seen,
+                        List<Trace> traces, List<ThreadPair> threadPairs, List<List<String>> fullStackTraces) {
+            this.clazz = clazz;
+            this.count = count;
+            this.samples = samples;
+            this.crossThreadCount = crossThreadCount;
+            this.seen = seen;
+            this.traces = traces;
+            this.threadPairs = threadPairs;
+            this.fullStackTraces = fullStackTraces;
+        }
+    }
+
+    static final class Trace {
+        final String trace;
+        final List<ClassCount> interfaceCounts;
+
+        private Trace(String trace, List<ClassCount> interfaceCounts) {
+            this.trace = trace;
+            this.interfaceCounts = interfaceCounts;
+        }
+    }
+
+    static final class ClassCount {
+        final String interfaceClazz;
+        final long count;
+        final long crossThreadCount;
+
+        private ClassCount(String interfaceClazz, long count, long crossThreadCount) {
+            this.interfaceClazz = interfaceClazz;
+            this.count = count;
+            this.crossThreadCount = crossThreadCount;
+        }
+    }
+
+    static final class ThreadPair {
+        final String fromThread;
+        final String toThread;
+        final long count;
+
+        private ThreadPair(String fromThread, String toThread, long count) {
+            this.fromThread = fromThread;
+            this.toThread = toThread;
+            this.count = count;
+        }
+    }
+
+    private final DataInputStream in;
+    private final List<String> strings = new ArrayList<>();
+
+    TraceDumpReader(InputStream in) throws IOException {
+        this.in = new DataInputStream(new BufferedInputStream(in));
+        final int first = this.in.read();
+        if (first != TraceDump.MAGIC[0]) {
+            throw new IOException("not a Type Pollution Agent binary dump");
+        }
+        readHeader();
+    }
+
+    /**
+     * Reads the header, but its first byte.
+     */
+    private void readHeader() throws IOException {
+        final byte[] magic = new byte[TraceDump.MAGIC.length];
+        magic[0] = TraceDump.MAGIC[0];
+        in.readFully(magic, 1, magic.length - 1);
+        if (!Arrays.equals(magic, TraceDump.MAGIC)) {
+            throw new IOException("not a Type Pollution Agent binary dump");
+        }
+        final int version = in.readUnsignedByte();
+        if (version != TraceDump.VERSION) {
+            throw new IOException("unsupported binary dump version: " + version);
+        }
+        // a new stream: the string ids restart
+        strings.clear();
+    }
+
+    /**
+     * @return the next snapshot or {@code null} if there are no more
+     */
+    Snapshot next() throws IOException {
+        while (true) {
+            final int tag = in.read();
+            if (tag < 0) {
+                return null;
+            }
+            if (tag == TraceDump.MAGIC[0]) {
+                // another stream appended to the same file
+                readHeader();
+                continue;
+            }
+            final long length = TraceDump.readVarint(in);
+            switch (tag) {
+                case TraceDump.STRING:
+                    readString();
+                    break;
+                case TraceDump.SNAPSHOT:
+                    return readSnapshot();
+                default:
+                    skip(length);
+            }
+        }
+    }
+
+    private void skip(long length) throws IOException {
+        while (length > 0) {
+            final long skipped = in.skip(length);
+            if (skipped <= 0) {
+                throw new EOFException("truncated record");
+            }
+            length -= skipped;
+        }
+    }
+
+    private int readCount() throws IOException {
+        final long count = TraceDump.readVarint(in);
+        if (count > Integer.MAX_VALUE) {
+            throw new IOException("malformed count: " + count);
+        }
+        return (int) count;
+    }
+
+    private void readString() throws IOException {
+        final long id = TraceDump.readVarint(in);
+        if (id != strings.size()) {
+            throw new IOException("unexpected string id: " + id);
+        }
+        final byte[] utf8 = new byte[readCount()];
+        in.readFully(utf8);
+        strings.add(new String(utf8, StandardCharsets.UTF_8));
+    }
+
+    private String stringOf() throws IOException {
+        final long id = TraceDump.readVarint(in);
+        if (id >= strings.size()) {
+            throw new IOException("undefined string id: " + id);
+        }
+        return strings.get((int) id);
+    }
+
+    private Snapshot readSnapshot() throws IOException {
+        final long timestampMs = TraceDump.readVarint(in);
+        final boolean last = in.readByte() != 0;
+        final long samplingPeriod = TraceDump.readVarint(in);
+        final long instrumentedSites = TraceDump.readVarint(in);
+        final long skippedSites = TraceDump.readVarint(in);
+        final long dropped = TraceDump.readVarint(in);
+        final List<Counter> typePollutionCounters = readCounters();
+        final List<Counter> missCounters = readCounters();
+        return new Snapshot(timestampMs, last, samplingPeriod, instrumentedSites, skippedSites, dropped,
+                typePollutionCounters, missCounters);
+    }
+
+    private List<Counter> readCounters() throws IOException {
+        final int size = readCount();
+        final List<Counter> counters = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            final String clazz = stringOf();
+            final long count = TraceDump.readVarint(in);
+            final long samples = TraceDump.readVarint(in);
+            final long crossThreadCount = TraceDump.readVarint(in);
+            final int seenSize = readCount();
+            final List<String> seen = new ArrayList<>(seenSize);
+            for (int j = 0; j < seenSize; j++) {
+                seen.add(stringOf());
+            }
+            final int tracesSize = readCount();
+            final List<Trace> traces = new ArrayList<>(tracesSize);
+            for (int j = 0; j < tracesSize; j++) {
+                final String trace = stringOf();
+                final int classCountsSize = readCount();
+                final List<ClassCount> classCounts = new ArrayList<>(classCountsSize);
+                for (int k = 0; k < classCountsSize; k++) {
+                    classCounts.add(new ClassCount(stringOf(), TraceDump.readVarint(in), TraceDump.readVarint(in)));
+                }
+                traces.add(new Trace(trace, classCounts));
+            }
+            final int threadPairsSize = readCount();
+            final List<ThreadPair> threadPairs = new ArrayList<>(threadPairsSize);
+            for (int j = 0; j < threadPairsSize; j++) {
+                threadPairs.add(new ThreadPair(stringOf(), stringOf(), TraceDump.readVarint(in)));
+            }
+            final int fullStackTracesSize = readCount();
+            final List<List<String>> fullStackTraces = new ArrayList<>(fullStackTracesSize);
+            for (int j = 0; j < fullStackTracesSize; j++) {
+                final int framesSize = readCount();
+                final List<String> frames = new ArrayList<>(framesSize);
+                for (int k = 0; k < framesSize; k++) {
+                    frames.add(stringOf());
+                }
+                fullStackTraces.add(frames);
+            }
+            counters.add(new Counter(clazz, count, samples, crossThreadCount, seen, traces, threadPairs, fullStackTraces));
+        }
+        return counters;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,132 @@
+package io.type.pollution.agent;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Streams the reports in the {@link TraceDump} format: each report is a single SNAPSHOT record, preceded by the
+ * STRING records of the strings it references for the first time.
+ */
+final class TraceDumpWriter {
+
+    private static final int INITIAL_CAPACITY = 4096;
+
+    private final Map<String, Integer> stringIds = new HashMap<>();
+    private ByteBuffer strings = ByteBuffer.allocate(INITIAL_CAPACITY);
+    private ByteBuffer payload = ByteBuffer.allocate(INITIAL_CAPACITY);
+    private final ByteBuffer recordHeader = ByteBuffer.allocate(1 + 10);
+
+    static void writeHeader(FileChannel channel) throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(TraceDump.MAGIC.length + 1);
+        header.put(TraceDump.MAGIC).put((byte) TraceDump.VERSION).flip();
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+    }
+
+    private static ByteBuffer ensureCapacity(ByteBuffer buffer, int required) {
+        if (buffer.remaining() >= required) {
+            return buffer;
+        }
+        final ByteBuffer bigger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + required));
+        buffer.flip();
+        return bigger.put(buffer);
+    }
+
+    private void putVarint(long value) {
+        payload = ensureCapacity(payload, 10);
+        TraceDump.putVarint(payload, value);
+    }
+
+    private void putString(String value) {
+        Integer id = stringIds.get(value);
+        if (id == null) {
+            id = stringIds.size();
+            stringIds.put(value, id);
+            final byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+            final int length = TraceDump.varintSize(id) + TraceDump.varintSize(utf8.length) + utf8.length;
+            strings = ensureCapacity(strings, 1 + 10 + length);
+            strings.put((byte) TraceDump.STRING);
+            TraceDump.putVarint(strings, length);
+            TraceDump.putVarint(strings, id);
+            TraceDump.putVarint(strings, utf8.length);
+            strings.put(utf8);
+        }
+        putVarint(id);
+    }
+
+    private void putCounters(Collection<TraceInstanceOf.TraceCounter.Snapshot> counters) {
+        putVarint(counters.size());
+        for (TraceInstanceOf.TraceCounter.Snapshot counter : counters) {
+            putString(counter.clazz.getName());
+            putVarint(counter.updateCount);
+            putVarint(counter.samples);
+            putVarint(counter.crossThreadUpdateCount);
+            putVarint(counter.seen.length);
+            for (Class<?> seen : counter.seen) {
+                putString(seen.getName());
+            }
+            putVarint(counter.traces.length);
+            for (TraceInstanceOf.TraceCounter.Snapshot.TraceSnapshot trace : counter.traces) {
+                putString(trace.trace);
+                putVarint(trace.interfaceSeenCounters.length);
+                for (TraceInstanceOf.TraceCounter.Snapshot.TraceSnapshot.ClassCount count : trace.interfaceSeenCounters) {
+                    putString(count.interfaceClazz.getName());
+                    putVarint(count.count);
+                    putVarint(count.crossThreadCount);
+                }
+            }
+            final int threadPairs = counter.threadPairs == null ? 0 : counter.threadPairs.length;
+            putVarint(threadPairs);
+            for (int i = 0; i < threadPairs; i++) {
+                final TraceInstanceOf.TraceCounter.Snapshot.ThreadPairCount pair = counter.threadPairs[i];
+                putString(pair.fromThread);
+                putString(pair.toThread);
+                putVarint(pair.count);
+            }
+            putVarint(counter.fullStackFrames.length);
+            for (StackTraceElement[] fullFrames : counter.fullStackFrames) {
+                putVarint(fullFrames.length);
+                for (StackTraceElement frame : fullFrames) {
+                    putString(frame.toString());
+                }
+            }
+        }
+    }
+
+    void writeSnapshot(FileChannel channel, long timestampMs, boolean last,
+                       long instrumentedSites, long skippedSites, long dropped,
+                       Collection<TraceInstanceOf.TraceCounter.Snapshot> typePollutionCounters,
+                       Collection<TraceInstanceOf.TraceCounter.Snapshot> missCounters) throws IOException {
+        strings.clear();
+        payload.clear();
+        putVarint(timestampMs);
+        payload = ensureCapacity(payload, 1);
+        payload.put((byte) (last ? 1 : 0));
+        putVarint(Agent.SAMPLING_PERIOD);
+        putVarint(instrumentedSites);
+        putVarint(skippedSites);
+        putVarint(dropped);
+        putCounters(typePollutionCounters);
+        putCounters(missCounters);
+        recordHeader.clear();
+        recordHeader.put((byte) TraceDump.SNAPSHOT);
+        TraceDump.putVarint(recordHeader, payload.position());
+        strings.flip();
+        recordHeader.flip();
+        payload.flip();
+        final ByteBuffer[] record = {strings, recordHeader, payload};
+        while (payload.hasRemaining()) {
+            channel.write(record);
+        }
+        if (strings.capacity() > 16 * INITIAL_CAPACITY) {
+            // the new strings are usually few, after the first snapshots
+            strings = ByteBuffer.allocate(INITIAL_CAPACITY);
+        }
+    }
+}
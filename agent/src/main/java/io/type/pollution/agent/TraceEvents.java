@@ -0,0 +1,187 @@
+package io.type.pollution.agent;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * Asynchronous recording of the secondary super cache invalidations and type check misses: each application thread
+ * appends compact records to its own single-producer ring buffer, without any CAS, and a daemon thread drains them in
+ * batches into the {@link TraceInstanceOf} counters.
+ * <p>
+ * The comparison of a type check hit with the last seen interface is performed by the checking thread, since the
+ * rings are drained one at a time and the order of the checks among them is lost: just the invalidations it detects
+ * are recorded, along with the pair of threads involved, if any.
+ * <p>
+ * If a ring buffer is full, the records are dropped and counted.
+ */
+final class TraceEvents {
+
+    private static final int MISS = 0;
+    private static final int INVALIDATION = 1;
+
+    private abstract static class EventRingPad0 {
+        long p00, p01, p02, p03, p04, p05, p06, p07;
+    }
+
+    private abstract static class EventRingProducerFields extends EventRingPad0 {
+        volatile long producerIndex;
+        long cachedConsumerIndex;
+        volatile long drops;
+    }
+
+    private abstract static class EventRingPad1 extends EventRingProducerFields {
+        long p10, p11, p12, p13, p14, p15, p16, p17;
+    }
+
+    private abstract static class EventRingConsumerFields extends EventRingPad1 {
+        volatile long consumerIndex;
+    }
+
+    private static final class EventRing extends EventRingConsumerFields {
+        private static final AtomicLongFieldUpdater<EventRingProducerFields> PRODUCER_INDEX_UPDATER =
+                AtomicLongFieldUpdater.newUpdater(EventRingProducerFields.class, "producerIndex");
+        private static final AtomicLongFieldUpdater<EventRingProducerFields> DROPS_UPDATER =
+                AtomicLongFieldUpdater.newUpdater(EventRingProducerFields.class, "drops");
+        private static final AtomicLongFieldUpdater<EventRingConsumerFields> CONSUMER_INDEX_UPDATER =
+                AtomicLongFieldUpdater.newUpdater(EventRingConsumerFields.class, "consumerIndex");
+
+        long p20, p21, p22, p23, p24, p25, p26, p27;
+        // 3 longs per record: (class id, interface id), (site id, invalidation/miss) and the thread pair key
+        private final long[] records;
+        private final int mask;
+        // the ring is discarded once its owner is dead
+        private final Thread owner;
+
+        private EventRing(int capacity, Thread owner) {
+            this.records = new long[capacity * 3];
+            this.mask = capacity - 1;
+            this.owner = owner;
+        }
+
+        private boolean isOwnerAlive() {
+            return owner.isAlive();
+        }
+
+        private void offer(long classes, long siteAndKind, long threadPairKey) {
+            final long pIndex = producerIndex;
+            final int capacity = mask + 1;
+            if (pIndex - cachedConsumerIndex >= capacity) {
+                cachedConsumerIndex = consumerIndex;
+                if (pIndex - cachedConsumerIndex >= capacity) {
+                    DROPS_UPDATER.lazySet(this, drops + 1);
+                    return;
+                }
+            }
+            final int offset = (int) (pIndex & mask) * 3;
+            records[offset] = classes;
+            records[offset + 1] = siteAndKind;
+            records[offset + 2] = threadPairKey;
+            PRODUCER_INDEX_UPDATER.lazySet(this, pIndex + 1);
+        }
+
+        private int drain() {
+            final long cIndex = consumerIndex;
+            final long pIndex = producerIndex;
+            if (cIndex == pIndex) {
+                return 0;
+            }
+            for (long i = cIndex; i < pIndex; i++) {
+                final int offset = (int) (i & mask) * 3;
+                final long classes = records[offset];
+                final long siteAndKind = records[offset + 1];
+                final ClassInfo clazz = ClassInfo.byId((int) (classes >>> 32));
+                final ClassInfo interfaceClazz = ClassInfo.byId((int) classes);
+                final int site = (int) (siteAndKind >>> 1);
+                if ((siteAndKind & 1) == INVALIDATION) {
+                    TraceInstanceOf.updateInvalidation(clazz, interfaceClazz.clazz, site, records[offset + 2]);
+                } else {
+                    TraceInstanceOf.updateTypeCheckMiss(clazz, interfaceClazz.clazz, site);
+                }
+            }
+            CONSUMER_INDEX_UPDATER.lazySet(this, pIndex);
+            return (int) (pIndex - cIndex);
+        }
+    }
+
+    private static final ConcurrentLinkedQueue<EventRing> RINGS = new ConcurrentLinkedQueue<>();
+    private static final ThreadLocal<EventRing> RING = ThreadLocal.withInitial(() -> {
+        final EventRing ring = new EventRing(Agent.EVENTS_BUFFER_CAPACITY, Thread.currentThread());
+        RINGS.add(ring);
+        return ring;
+    });
+    // drops of the rings of the dead threads
+    private static final AtomicLong RETIRED_DROPS = new AtomicLong();
+    private static final Object DRAIN_LOCK = new Object();
+
+    private TraceEvents() {
+
+    }
+
+    static void startAggregator(final long drainPeriodMs) {
+        final Thread aggregator = new Thread(() -> {
+            final Thread current = Thread.currentThread();
+            while (!current.isInterrupted()) {
+                drain();
+                try {
+                    TimeUnit.MILLISECONDS.sleep(drainPeriodMs);
+                } catch (InterruptedException e) {
+                    // let's stop
+                    return;
+                }
+            }
+        });
+        aggregator.setName("type-pollution-aggregator");
+        aggregator.setDaemon(true);
+        aggregator.start();
+    }
+
+    private static long classesOf(ClassInfo clazz, Class interfaceClazz) {
+        return ((long) clazz.id << 32) | (ClassInfo.of(interfaceClazz).id & 0xFFFFFFFFL);
+    }
+
+    /**
+     * @param threadPairKey the key of the pair of threads involved, if a cross-thread invalidation, or
+     *                      {@link TraceInstanceOf.TypePollutionTraceCounter#NO_THREAD_PAIR}
+     */
+    static void invalidation(ClassInfo clazz, Class interfaceClazz, int site, long threadPairKey) {
+        RING.get().offer(classesOf(clazz, interfaceClazz), ((long) site << 1) | INVALIDATION, threadPairKey);
+    }
+
+    static void miss(ClassInfo clazz, Class interfaceClazz, int site) {
+        RING.get().offer(classesOf(clazz, interfaceClazz), ((long) site << 1) | MISS,
+                TraceInstanceOf.TypePollutionTraceCounter.NO_THREAD_PAIR);
+    }
+
+    /**
+     * Drains all the ring buffers into the {@link TraceInstanceOf} counters.
+     *
+     * @return the number of drained records
+     */
+    static int drain() {
+        synchronized (DRAIN_LOCK) {
+            int drained = 0;
+            for (Iterator<EventRing> it = RINGS.iterator(); it.hasNext(); ) {
+                final EventRing ring = it.next();
+                // check it before draining, to not miss any record appended before dying
+                final boolean alive = ring.isOwnerAlive();
+                drained += ring.drain();
+                if (!alive) {
+                    it.remove();
+                    RETIRED_DROPS.addAndGet(ring.drops);
+                }
+            }
+            return drained;
+        }
+    }
+
+    static long drops() {
+        long drops = RETIRED_DROPS.get();
+        for (EventRing ring : RINGS) {
+            drops += ring.drops;
+        }
+        return drops;
+    }
+}
@@ -0,0 +1,172 @@
+package io.type.pollution.agent;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Writes the sampled full stack traces of the type pollution counters in the collapsed-stack format
+ * ({@code frame;frame;frame weight}, outermost frame first) or as a self-contained HTML flame graph.
+ * <p>
+ * The leaf of each stack is the synthetic frame {@code Concrete -> Interface} and its weight is the (estimated, if
+ * sampling) update count of the trace, split among its full stack traces by their samples.
+ */
+final class TraceFlameGraph {
+
+    private static final String TEMPLATE = "flamegraph.html";
+    private static final String DATA_PLACEHOLDER = "/*DATA*/";
+
+    private static final class Frame {
+        final String name;
+        long weight;
+        final Map<String, Frame> children = new LinkedHashMap<>();
+
+        private Frame(String name) {
+            this.name = name;
+        }
+    }
+
+    private TraceFlameGraph() {
+
+    }
+
+    private static void appendFrame(StringBuilder stack, StackTraceElement frame) {
+        stack.append(frame.getClassName()).append('.').append(frame.getMethodName());
+        if (frame.getLineNumber() >= 0) {
+            stack.append(':').append(frame.getLineNumber());
+        }
+        stack.append(';');
+    }
+
+    /**
+     * @return the collapsed stacks of the counters with more than {@code minUpdateCount} updates, with their weight
+     */
+    static Map<String, Long> collapsedStacks(int minUpdateCount) {
+        final Map<String, Long> stacks = new TreeMap<>();
+        final StringBuilder stack = new StringBuilder();
+        final int minCount = Math.max(1, minUpdateCount);
+        TraceInstanceOf.forEachTypePollutionCounter(counter -> {
+            if (counter.count() <= minCount) {
+                return;
+            }
+            final String concreteClass = counter.clazz().getName();
+            counter.forEachFullStackTrace((traceKey, stackTrace, weight) -> {
+                stack.setLength(0);
+                final StackTraceElement[] frames = stackTrace.stackTrace();
+                for (int i = frames.length - 1; i >= 0; i--) {
+                    appendFrame(stack, frames[i]);
+                }
+                final Class interfaceClazz = ClassInfo.byId(TraceInstanceOf.TraceCounter.interfaceIdOf(traceKey)).clazz;
+                stack.append(concreteClass).append(" -> ").append(interfaceClazz.getName());
+                stacks.merge(stack.toString(), weight, Long::sum);
+            });
+        });
+        return stacks;
+    }
+
+    static void writeCollapsed(Map<String, Long> stacks, Writer out) throws IOException {
+        for (Map.Entry<String, Long> stack : stacks.entrySet()) {
+            out.write(stack.getKey());
+            out.write(' ');
+            out.write(Long.toString(stack.getValue()));
+            out.write('\n');
+        }
+    }
+
+    private static Frame treeOf(Map<String, Long> stacks) {
+        final Frame root = new Frame("all");
+        for (Map.Entry<String, Long> stack : stacks.entrySet()) {
+            final long weight = stack.getValue();
+            root.weight += weight;
+            Frame frame = root;
+            for (String name : stack.getKey().split(";")) {
+                frame = frame.children.computeIfAbsent(name, Frame::new);
+                frame.weight += weight;
+            }
+        }
+        return root;
+    }
+
+    private static void appendJsonString(StringBuilder json, String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    json.append("\\\"");
+                    break;
+                case '\\':
+                    json.append("\\\\");
+                    break;
+                default:
+                    // < and > too, to not close the embedding script element, and the JavaScript line terminators
+                    if (c < 0x20 || c == '<' || c == '>' || c == 0x2028 || c == 0x2029) {
+                        json.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        json.append(c);
+                    }
+            }
+        }
+        json.append('"');
+    }
+
+    private static void appendJson(StringBuilder json, Frame frame) {
+        json.append("{\"n\":");
+        appendJsonString(json, frame.name);
+        json.append(",\"v\":").append(frame.weight).append(",\"c\":[");
+        // heaviest first
+        final List<Frame> children = new ArrayList<>(frame.children.values());
+        children.sort(Comparator.<Frame>comparingLong(child -> child.weight).reversed());
+        for (int i = 0; i < children.size(); i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            appendJson(json, children.get(i));
+        }
+        json.append("]}");
+    }
+
+    private static String template() throws IOException {
+        try (InputStream in = TraceFlameGraph.class.getResourceAsStream(TEMPLATE)) {
+            if (in == null) {
+                throw new IOException("missing " + TEMPLATE);
+            }
+            final byte[] bytes = in.readAllBytes();
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    static void writeHtml(Map<String, Long> stacks, Writer out) throws IOException {
+        final String template = template();
+        final int data = template.indexOf(DATA_PLACEHOLDER);
+        final StringBuilder json = new StringBuilder();
+        appendJson(json, treeOf(stacks));
+        out.write(template, 0, data);
+        out.append(json);
+        out.write(template, data + DATA_PLACEHOLDER.length(), template.length() - data - DATA_PLACEHOLDER.length());
+    }
+
+    /**
+     * Writes (replacing it) {@code file}: as an HTML flame graph if its name ends with {@code .html}, in the
+     * collapsed-stack format otherwise.
+     */
+    static void write(Path file, int minUpdateCount) throws IOException {
+        final Map<String, Long> stacks = collapsedStacks(minUpdateCount);
+        try (Writer out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            if (file.getFileName().toString().endsWith(".html")) {
+                writeHtml(stacks, out);
+            } else {
+                writeCollapsed(stacks, out);
+            }
+        }
+    }
+}
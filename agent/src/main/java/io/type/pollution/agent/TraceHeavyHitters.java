@@ -0,0 +1,181 @@
+package io.type.pollution.agent;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The traces of a counter which don't fit into its bounded {@link TraceCounterTable}: their counts are estimated by a
+ * Count-Min sketch, shared by all the counters, and a Space-Saving summary keeps the (approximate) heaviest of them.
+ * <p>
+ * The summary is updated under a {@link ReentrantLock#tryLock()}: under contention, the updates just go to the
+ * sketch.
+ * <p>
+ * The heaviest traces can take the place of the lightest ones of the bounded table, see
+ * {@link TraceInstanceOf.TraceCounter#promoteOverflowTraces()}.
+ */
+final class TraceHeavyHitters {
+
+    private static final int SKETCH_DEPTH = 4;
+    // this MUST be a power of 2
+    private static final int SKETCH_WIDTH = Agent.BOUNDED_TRACES ? Agent.BOUNDED_SKETCH_WIDTH : 1;
+    private static final AtomicLongArray SKETCH = new AtomicLongArray(SKETCH_DEPTH * SKETCH_WIDTH);
+    private static final AtomicInteger NEXT_SEED = new AtomicInteger();
+
+    /**
+     * The keys which can still be inserted into all the bounded {@link TraceCounterTable}s.
+     */
+    static final AtomicLong KEYS_BUDGET = new AtomicLong(Agent.BOUNDED_TRACES_TOTAL > 0 ? Agent.BOUNDED_TRACES_TOTAL : Long.MAX_VALUE);
+
+    private final long seed = (NEXT_SEED.incrementAndGet() * 0x9E3779B97F4A7C15L);
+    private final LongAdder count = new LongAdder();
+    private final ReentrantLock lock = new ReentrantLock();
+    // guarded by lock
+    private final long[] keys;
+    private final long[] counts;
+    private int size;
+
+    TraceHeavyHitters(int capacity) {
+        keys = new long[capacity];
+        counts = new long[capacity];
+    }
+
+    private static long mix(long key) {
+        // murmur3 fmix64
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    private static int indexOf(int row, long hash) {
+        // Kirsch-Mitzenmacher: the row hashes are derived by the 2 halves of a single hash
+        final int h1 = (int) hash;
+        final int h2 = (int) (hash >>> 32) | 1;
+        return row * SKETCH_WIDTH + ((h1 + row * h2) & (SKETCH_WIDTH - 1));
+    }
+
+    private long estimateOf(long hash) {
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < SKETCH_DEPTH; row++) {
+            estimate = Math.min(estimate, SKETCH.get(indexOf(row, hash)));
+        }
+        return estimate;
+    }
+
+    void increment(long traceKey) {
+        count.increment();
+        final long hash = mix(traceKey ^ seed);
+        for (int row = 0; row < SKETCH_DEPTH; row++) {
+            SKETCH.getAndIncrement(indexOf(row, hash));
+        }
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            int min = 0;
+            for (int i = 0; i < size; i++) {
+                if (keys[i] == traceKey) {
+                    counts[i]++;
+                    return;
+                }
+                if (counts[i] < counts[min]) {
+                    min = i;
+                }
+            }
+            // the sketch estimate accounts for the updates missed by the summary too
+            final long estimate = estimateOf(hash);
+            if (size < keys.length) {
+                keys[size] = traceKey;
+                counts[size] = estimate;
+                size++;
+            } else if (size > 0 && estimate > counts[min]) {
+                keys[min] = traceKey;
+                counts[min] = estimate;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Moves {@code promoted[i]} into the bounded table, starting from {@code promotedCounts[i]}, in place of
+     * {@code evicted[i]}, which is kept by the summary (if not lighter than all the others), starting from its exact
+     * {@code evictedCounts[i]}: the (sampled) count of all the traces is adjusted accordingly.
+     */
+    void replace(long[] promoted, long[] promotedCounts, long[] evicted, long[] evictedCounts) {
+        lock.lock();
+        try {
+            for (int i = 0; i < promoted.length; i++) {
+                count.add(evictedCounts[i] - promotedCounts[i]);
+                final long hash = mix(evicted[i] ^ seed);
+                for (int row = 0; row < SKETCH_DEPTH; row++) {
+                    SKETCH.getAndAdd(indexOf(row, hash), evictedCounts[i]);
+                }
+                int index = -1;
+                int min = 0;
+                for (int j = 0; j < size; j++) {
+                    if (keys[j] == promoted[i]) {
+                        index = j;
+                        break;
+                    }
+                    if (counts[j] < counts[min]) {
+                        min = j;
+                    }
+                }
+                if (index < 0) {
+                    if (size < keys.length) {
+                        index = size;
+                        size++;
+                    } else if (size > 0 && evictedCounts[i] > counts[min]) {
+                        index = min;
+                    } else {
+                        continue;
+                    }
+                }
+                keys[index] = evicted[i];
+                counts[index] = evictedCounts[i];
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Clears the sketch, once all the counters have been reset: the updates racing with it can survive.
+     */
+    static void clearSketch() {
+        for (int i = 0; i < SKETCH.length(); i++) {
+            SKETCH.lazySet(i, 0);
+        }
+    }
+
+    /**
+     * @return the (sampled) count of all the traces
+     */
+    long count() {
+        return count.sum();
+    }
+
+    /**
+     * Visits the heaviest traces, with their (sampled) estimated count, which is never lower than the real one.
+     */
+    void forEach(TraceCounterTable.EntryConsumer consumer) {
+        final long[] keys;
+        final int size;
+        lock.lock();
+        try {
+            size = this.size;
+            keys = this.keys.clone();
+        } finally {
+            lock.unlock();
+        }
+        for (int i = 0; i < size; i++) {
+            consumer.accept(keys[i], estimateOf(mix(keys[i] ^ seed)));
+        }
+    }
+}
@@ -2,22 +2,20 @@ package io.type.pollution.agent;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.function.Consumer;
+import java.util.stream.LongStream;
 
 public class TraceInstanceOf {
 
     private static volatile long GLOBAL_SAMPLING_TICK = System.nanoTime();
     private static final AtomicInteger METRONOME_PERIOD_MS = new AtomicInteger(-1);
 
-    // not ideal perf-wise:
-    // a good candidate to perform one-shot changing checks is
-    // https://docs.oracle.com/en/java/javase/11/docs/api/java.base/java/lang/invoke/SwitchPoint.html
-    private static final AtomicBoolean TRACING_STARTED = new AtomicBoolean();
     private static final Thread METRONOME = new Thread(() -> {
         // this isn't supposed to change
         final int samplingPeriod = METRONOME_PERIOD_MS.get();
@@ -59,7 +57,11 @@ public class TraceInstanceOf {
     }
 
     private static void startTracing() {
-        TRACING_STARTED.compareAndSet(false, true);
+        TraceBootstraps.setTracing(true);
+    }
+
+    public static void stopTracing() {
+        TraceBootstraps.setTracing(false);
     }
 
     public static void startMetronome(int samplingPeriod) {
@@ -74,185 +76,387 @@ public class TraceInstanceOf {
 
 
         private MissTraceCounter(Class clazz) {
-            super(clazz);
+            super(clazz, MISS_INDEX);
         }
 
-        public void onTypeCheckMiss(Class interfaceClazz, String trace) {
-            updateTraceCount(interfaceClazz, trace);
+        public void onTypeCheckMiss(Class interfaceClazz, int site) {
+            updateTraceCount(interfaceClazz, site);
+            if (Agent.JFR_TYPE_CHECK_EVENTS) {
+                TraceJfr.typeCheck(this, interfaceClazz, site, false, null);
+            }
         }
     }
 
     public static final class TypePollutionTraceCounter extends TraceCounter {
         private static final AtomicReferenceFieldUpdater<TypePollutionTraceCounter, Class> LAST_SEEN_INTERFACE_UPDATER =
                 AtomicReferenceFieldUpdater.newUpdater(TypePollutionTraceCounter.class, Class.class, "lastSeenInterface");
+        private static final AtomicReferenceFieldUpdater<TypePollutionTraceCounter, Thread> LAST_SEEN_THREAD_UPDATER =
+                AtomicReferenceFieldUpdater.newUpdater(TypePollutionTraceCounter.class, Thread.class, "lastSeenThread");
+        private static final ConcurrentHashMap<Long, String> THREAD_NAMES = new ConcurrentHashMap<>();
 
         private volatile Class lastSeenInterface = null;
+        // the thread which has last updated lastSeenInterface: they are not updated atomically, but it's ok
+        private volatile Thread lastSeenThread = null;
+        // keyed by traceKey(interface id, site id)
+        private volatile TraceCounterTable crossThreadTraces = newTraceCounterTable();
+        // keyed by threadPairKey(from thread id, to thread id)
+        private volatile TraceCounterTable threadPairs = newTraceCounterTable();
 
         private TypePollutionTraceCounter(Class clazz) {
-            super(clazz);
+            super(clazz, TYPE_POLLUTION_INDEX);
         }
 
-        public void onTypeCheckHit(Class interfaceClazz, String trace) {
+        public void onTypeCheckHit(Class interfaceClazz, int site, Thread thread) {
             final Class lastSeen = lastSeenInterface;
             if (interfaceClazz.equals(lastSeen)) {
                 return;
             }
+            final Thread lastThread = lastSeenThread;
             // ok to lose some sample
             LAST_SEEN_INTERFACE_UPDATER.lazySet(this, interfaceClazz);
-            if (lastSeen != null) {
-                updateTraceCount(interfaceClazz, trace);
+            if (lastThread != thread) {
+                LAST_SEEN_THREAD_UPDATER.lazySet(this, thread);
+            }
+            // each check is compared with the last seen interface, but just 1 in N invalidations is recorded
+            if (lastSeen != null && TypeCheckSampler.sample()) {
+                final boolean crossThread = lastThread != null && lastThread != thread;
+                if (Agent.ASYNC_EVENTS) {
+                    // the comparison with the last seen interface is performed by the checking thread, in the order
+                    // the checks happen: just the invalidations are recorded, to be counted by the aggregator
+                    TraceEvents.invalidation(ClassInfo.of(clazz()), interfaceClazz, site,
+                            crossThread ? threadPairKey(lastThread, thread) : NO_THREAD_PAIR);
+                    return;
+                }
+                onInvalidation(interfaceClazz, site, crossThread ? threadPairKey(lastThread, thread) : NO_THREAD_PAIR);
+                if (Agent.JFR_TYPE_CHECK_EVENTS) {
+                    TraceJfr.typeCheck(this, interfaceClazz, site, true, crossThread ? lastThread : null);
+                }
             }
         }
-    }
 
-    public static class TraceCounter {
+        void onInvalidation(Class interfaceClazz, int site, long threadPairKey) {
+            final long traceKey = updateTraceCount(interfaceClazz, site);
+            if (threadPairKey != NO_THREAD_PAIR) {
+                // the secondary super cache line has to move from a core to another
+                crossThreadTraces.increment(traceKey);
+                threadPairs.increment(threadPairKey);
+            }
+        }
 
-        private static final class StackTraceArrayList extends ArrayList<StackTraceElement> {
+        static final long NO_THREAD_PAIR = -1;
 
-            public StackTraceArrayList(int capacity) {
-                super(capacity);
+        private static long threadPairKey(Thread from, Thread to) {
+            final long fromId = from.getId();
+            final long toId = to.getId();
+            registerThreadName(fromId, from);
+            registerThreadName(toId, to);
+            return (fromId << 32) | (toId & 0xFFFFFFFFL);
+        }
+
+        private static void registerThreadName(long id, Thread thread) {
+            if (!THREAD_NAMES.containsKey(id)) {
+                THREAD_NAMES.putIfAbsent(id, thread.getName());
             }
         }
 
+        private static String threadNameOf(long id) {
+            final String name = THREAD_NAMES.get(id);
+            return name == null ? "#" + id : name;
+        }
+
+        @Override
+        protected void reset() {
+            super.reset();
+            final TraceCounterTable crossThreadTraces = this.crossThreadTraces;
+            final TraceCounterTable threadPairs = this.threadPairs;
+            this.crossThreadTraces = newTraceCounterTable();
+            this.threadPairs = newTraceCounterTable();
+            crossThreadTraces.release();
+            threadPairs.release();
+        }
+
+        @Override
+        protected long crossThreadCount(long traceKey) {
+            return TypeCheckSampler.estimate(crossThreadTraces.get(traceKey));
+        }
+
+        @Override
+        protected long crossThreadCount() {
+            return TypeCheckSampler.estimate(crossThreadTraces.count());
+        }
+
+        @Override
+        protected Snapshot.ThreadPairCount[] threadPairs() {
+            final ArrayList<Snapshot.ThreadPairCount> pairs = new ArrayList<>();
+            threadPairs.forEach((pairKey, count) -> pairs.add(new Snapshot.ThreadPairCount(
+                    threadNameOf(pairKey >>> 32), threadNameOf(pairKey & 0xFFFFFFFFL), TypeCheckSampler.estimate(count))));
+            pairs.sort(Comparator.<Snapshot.ThreadPairCount>comparingLong(pair -> pair.count).reversed());
+            return pairs.toArray(new Snapshot.ThreadPairCount[0]);
+        }
+    }
+
+    public static class TraceCounter {
 
         private static final AtomicLongFieldUpdater<TraceCounter> SAMPLING_TICK_UPDATER =
                 AtomicLongFieldUpdater.newUpdater(TraceCounter.class, "lastSamplingTick");
+        private static final AtomicLongFieldUpdater<TraceCounter> EVENT_TICK_UPDATER =
+                AtomicLongFieldUpdater.newUpdater(TraceCounter.class, "lastEventTick");
+        private static final AtomicIntegerFieldUpdater<TraceCounter> DIRTY_UPDATER =
+                AtomicIntegerFieldUpdater.newUpdater(TraceCounter.class, "dirty");
+        private static final AtomicLong NEXT_INDEX_ID = new AtomicLong();
+        private static final long[] NO_TRACES = new long[0];
 
         private final Class clazz;
         private volatile long lastSamplingTick = System.nanoTime();
-        private final ConcurrentHashMap<Trace, TraceData> traces = new ConcurrentHashMap<>();
-        private static final ThreadLocal<Trace> TRACE = ThreadLocal.withInitial(Trace::new);
+        private volatile long lastEventTick = System.nanoTime();
+        // both keyed by traceKey(interface id, site id)
+        private volatile TraceCounterTable traces = newTraceCounterTable();
+        private volatile ConcurrentHashMap<Long, TraceData> sampledTraces = new ConcurrentHashMap<>();
+        // the traces rejected by the bounded traces table, lazily created
+        private volatile TraceHeavyHitters overflowTraces;
+        // sorted: the traces moved from overflowTraces into the bounded traces table, with an estimated initial count
+        private volatile long[] promotedTraces = NO_TRACES;
+        private final TraceCounterIndex index;
+        // 1 if updated since the index has last refreshed it
+        private volatile int dirty;
+        // guarded by the index
+        final long indexId = NEXT_INDEX_ID.getAndIncrement();
+        long indexedCount;
+        Snapshot cachedSnapshot;
+        // guarded by the index: refreshed with indexedCount, if the index tracks them
+        TypeCheckCost.TraceCount[] indexedTraceCounts;
 
-        public static class Trace {
-            private Class interfaceClazz;
-            private String trace;
+        public static class TraceData {
 
-            public Trace() {
+            // keyed by the (interned) captured stack traces
+            private final ConcurrentHashMap<CallTree.Node, AtomicLong> sampledStackTraces = new ConcurrentHashMap<>();
 
+            public boolean addFullStackTrace() {
+                // in bounded mode, once full, keep on sampling the already captured stack traces only
+                final boolean full = Agent.BOUNDED_TRACES && sampledStackTraces.size() >= Agent.BOUNDED_FULL_STACK_TRACES;
+                final CallTree.Node stackTrace = CallTree.capture(!full);
+                if (stackTrace == null) {
+                    return false;
+                }
+                AtomicLong samples = sampledStackTraces.get(stackTrace);
+                if (samples == null) {
+                    if (full) {
+                        return false;
+                    }
+                    samples = sampledStackTraces.computeIfAbsent(stackTrace, k -> new AtomicLong());
+                }
+                return samples.getAndIncrement() == 0;
             }
 
-            public Trace with(Class interfaceClazz, String trace) {
-                this.interfaceClazz = interfaceClazz;
-                this.trace = trace;
-                return this;
-            }
+        }
+
+        private TraceCounter(Class clazz, TraceCounterIndex index) {
+            this.clazz = clazz;
+            this.index = index;
+        }
 
-            public Trace clear() {
-                this.interfaceClazz = null;
-                this.trace = null;
-                return this;
+        private void markDirty() {
+            if (dirty == 0 && DIRTY_UPDATER.compareAndSet(this, 0, 1)) {
+                index.markDirty(this);
             }
+        }
 
-            @Override
-            public boolean equals(final Object o) {
-                if (this == o) return true;
-                if (o == null || getClass() != o.getClass()) return false;
+        void clearDirty() {
+            dirty = 0;
+        }
 
-                final Trace trace1 = (Trace) o;
+        void cacheSnapshot() {
+            cachedSnapshot = snapshot();
+        }
 
-                if (!interfaceClazz.equals(trace1.interfaceClazz)) return false;
-                return trace.equals(trace1.trace);
-            }
+        Class clazz() {
+            return clazz;
+        }
 
-            @Override
-            public int hashCode() {
-                int result = interfaceClazz.hashCode();
-                result = 31 * result + trace.hashCode();
-                return result;
+        /**
+         * @return {@code true} if no other event has been acquired in the last {@code periodNanos}
+         */
+        final boolean tryAcquireEvent(long periodNanos) {
+            final long tick = lastEventTick;
+            final long now = System.nanoTime();
+            if (now - tick < periodNanos) {
+                return false;
             }
+            return EVENT_TICK_UPDATER.compareAndSet(this, tick, now);
+        }
+
+        /**
+         * Visits the sampled (ie not estimated) count of each trace.
+         */
+        void forEachTraceCount(TraceCounterTable.EntryConsumer consumer) {
+            traces.forEach(consumer);
+        }
+
+        /**
+         * @return the (estimated, if sampling) count of each trace, including the ones over the bounds, without
+         * building a {@link Snapshot}
+         */
+        TypeCheckCost.TraceCount[] traceCounts() {
+            final ArrayList<TypeCheckCost.TraceCount> traceCounts = new ArrayList<>();
+            final long[] promotedTraces = this.promotedTraces;
+            traces.forEach((traceKey, sampledUpdateCount) -> traceCounts.add(new TypeCheckCost.TraceCount(
+                    ClassInfo.byId(interfaceIdOf(traceKey)).clazz, siteOf(traceKey),
+                    TypeCheckSampler.estimate(sampledUpdateCount), crossThreadCount(traceKey),
+                    isPromoted(promotedTraces, traceKey))));
+            final TraceHeavyHitters overflowTraces = this.overflowTraces;
+            if (overflowTraces != null) {
+                overflowTraces.forEach((traceKey, sampledUpdateCount) -> traceCounts.add(new TypeCheckCost.TraceCount(
+                        ClassInfo.byId(interfaceIdOf(traceKey)).clazz, siteOf(traceKey),
+                        TypeCheckSampler.estimate(sampledUpdateCount), 0, true)));
+            }
+            return traceCounts.toArray(new TypeCheckCost.TraceCount[0]);
         }
 
-        public static class TraceData {
-
-            private static final ThreadLocal<StackTraceArrayList> FULL_STACK_TRACE = new ThreadLocal<>();
-
-            private static final AtomicLongFieldUpdater<TraceData> COUNT_UPDATER =
-                    AtomicLongFieldUpdater.newUpdater(TraceData.class, "count");
+        private static boolean isPromoted(long[] promotedTraces, long traceKey) {
+            return promotedTraces.length > 0 && Arrays.binarySearch(promotedTraces, traceKey) >= 0;
+        }
 
-            private volatile long count;
-            private final CopyOnWriteArraySet<StackTraceArrayList> sampledStackTraces = new CopyOnWriteArraySet<>();
+        /**
+         * @return {@code true} if the count of the trace started from the estimate of a trace over the bounds
+         */
+        boolean isPromotedTrace(long traceKey) {
+            return isPromoted(promotedTraces, traceKey);
+        }
 
-            public void weakIncrementUpdateCount() {
-                COUNT_UPDATER.lazySet(this, count + 1);
+        /**
+         * Lets the heaviest traces over the bounds take the place of the lightest traces of the bounded table, if
+         * their estimated count is higher, so that the heaviest traces end up counted exactly (from then on): called by
+         * the index only, out of the hot path.
+         */
+        synchronized void promoteOverflowTraces() {
+            final TraceHeavyHitters overflowTraces = this.overflowTraces;
+            if (overflowTraces == null) {
+                return;
             }
-
-            private static StackTraceArrayList acquireStackTraceListOf(int capacity) {
-                StackTraceArrayList list = FULL_STACK_TRACE.get();
-                if (list == null) {
-                    list = new StackTraceArrayList(capacity);
-                    FULL_STACK_TRACE.set(list);
+            final List<long[]> candidates = new ArrayList<>();
+            overflowTraces.forEach((traceKey, sampledUpdateCount) -> candidates.add(new long[]{traceKey, sampledUpdateCount}));
+            if (candidates.isEmpty()) {
+                return;
+            }
+            final TraceCounterTable traces = this.traces;
+            final List<long[]> entries = new ArrayList<>();
+            traces.forEach((traceKey, sampledUpdateCount) -> entries.add(new long[]{traceKey, sampledUpdateCount}));
+            candidates.sort(Comparator.<long[]>comparingLong(candidate -> candidate[1]).reversed());
+            entries.sort(Comparator.comparingLong(entry -> entry[1]));
+            final int maxReplaced = Math.min(candidates.size(), entries.size());
+            final long[] promoted = new long[maxReplaced];
+            final long[] promotedCounts = new long[maxReplaced];
+            final long[] evicted = new long[maxReplaced];
+            final long[] evictedCounts = new long[maxReplaced];
+            // the estimates can't move more than the count of all the traces over the bounds
+            long overflowCount = overflowTraces.count();
+            int replaced = 0;
+            for (; replaced < maxReplaced; replaced++) {
+                final long[] candidate = candidates.get(replaced);
+                final long[] entry = entries.get(replaced);
+                final long promotedCount = Math.min(candidate[1], overflowCount);
+                if (promotedCount <= entry[1]) {
+                    break;
                 }
-                list.ensureCapacity(capacity);
-                return list;
+                overflowCount -= promotedCount;
+                promoted[replaced] = candidate[0];
+                promotedCounts[replaced] = promotedCount;
+                evicted[replaced] = entry[0];
+                evictedCounts[replaced] = entry[1];
             }
-
-            private static void releaseStackTraceArrayList() {
-                FULL_STACK_TRACE.set(null);
+            if (replaced == 0) {
+                return;
             }
-
-            public boolean addFullStackTrace() {
-                // this is not nice :( we KNOW which level we are so can hard-code this
-                // but is brittle, and it depends on where the trace collection happens
-                final int START_STACK = 5;
-                StackTraceElement[] stackTraces = Thread.currentThread().getStackTrace();
-                final int stackTraceMaxDepth;
-                if (Agent.FULL_STACK_TRACES_LIMIT <= 0) {
-                    stackTraceMaxDepth = stackTraces.length;
-                } else {
-                    stackTraceMaxDepth = Math.min(Agent.FULL_STACK_TRACES_LIMIT + START_STACK, stackTraces.length);
+            final long[] replacedPromoted = Arrays.copyOf(promoted, replaced);
+            final long[] replacedEvicted = Arrays.copyOf(evicted, replaced);
+            this.traces = traces.withReplaced(replacedEvicted, replacedPromoted, Arrays.copyOf(promotedCounts, replaced));
+            overflowTraces.replace(replacedPromoted, Arrays.copyOf(promotedCounts, replaced),
+                    replacedEvicted, Arrays.copyOf(evictedCounts, replaced));
+            final long[] sortedEvicted = replacedEvicted.clone();
+            Arrays.sort(sortedEvicted);
+            promotedTraces = LongStream.concat(
+                    Arrays.stream(promotedTraces).filter(traceKey -> Arrays.binarySearch(sortedEvicted, traceKey) < 0),
+                    Arrays.stream(replacedPromoted)).sorted().toArray();
+        }
+
+        interface FullStackTraceConsumer {
+            void accept(long traceKey, CallTree.Node stackTrace, long weight);
+        }
+
+        /**
+         * Visits the full stack traces of each trace, weighted by splitting the (estimated, if sampling) update count
+         * of the trace among them, by their samples.
+         */
+        void forEachFullStackTrace(FullStackTraceConsumer consumer) {
+            final TraceCounterTable traces = this.traces;
+            sampledTraces.forEach((traceKey, traceData) -> {
+                long traceSamples = 0;
+                for (AtomicLong samples : traceData.sampledStackTraces.values()) {
+                    traceSamples += samples.get();
+                }
+                if (traceSamples == 0) {
+                    return;
                 }
-                final StackTraceArrayList fullStackTraces = acquireStackTraceListOf(stackTraceMaxDepth);
-                boolean addedFullStackSample = false;
-                try {
-                    for (int i = START_STACK; i < stackTraceMaxDepth; i++) {
-                        fullStackTraces.add(stackTraces[i]);
+                final double updateCount = TypeCheckSampler.estimate(traces.get(traceKey));
+                for (Map.Entry<CallTree.Node, AtomicLong> stackTrace : traceData.sampledStackTraces.entrySet()) {
+                    final long weight = Math.round(updateCount * stackTrace.getValue().get() / traceSamples);
+                    if (weight > 0) {
+                        consumer.accept(traceKey, stackTrace.getKey(), weight);
                     }
-                    addedFullStackSample = sampledStackTraces.add(fullStackTraces);
-                } catch (Throwable ignore) {
-
                 }
-                if (addedFullStackSample) {
-                    // cannot reuse it
-                    releaseStackTraceArrayList();
-                } else {
-                    // keep on reusing it
-                    fullStackTraces.clear();
+            });
+        }
+
+        static TraceCounterTable newTraceCounterTable() {
+            if (!Agent.BOUNDED_TRACES) {
+                return new TraceCounterTable(Agent.EXACT_COUNT);
+            }
+            return new TraceCounterTable(Agent.EXACT_COUNT,
+                    Agent.BOUNDED_TRACES_MAX > 0 ? Agent.BOUNDED_TRACES_MAX : Integer.MAX_VALUE,
+                    TraceHeavyHitters.KEYS_BUDGET);
+        }
+
+        private TraceHeavyHitters overflowTraces() {
+            TraceHeavyHitters overflowTraces = this.overflowTraces;
+            if (overflowTraces != null) {
+                return overflowTraces;
+            }
+            synchronized (this) {
+                overflowTraces = this.overflowTraces;
+                if (overflowTraces == null) {
+                    overflowTraces = new TraceHeavyHitters(Agent.BOUNDED_TOP);
+                    this.overflowTraces = overflowTraces;
                 }
-                return addedFullStackSample;
+                return overflowTraces;
             }
+        }
 
+        static long traceKey(int interfaceId, int site) {
+            return ((long) interfaceId << 32) | (site & 0xFFFFFFFFL);
         }
 
-        private TraceCounter(Class clazz) {
-            this.clazz = clazz;
+        static int interfaceIdOf(long traceKey) {
+            return (int) (traceKey >>> 32);
         }
 
-        protected final void updateTraceCount(Class interfaceClazz, String trace) {
-            final Trace pooledTrace = TRACE.get().with(interfaceClazz, trace);
-            final boolean added;
-            TraceData data = traces.get(pooledTrace);
-            if (data == null) {
-                TraceData newData = new TraceData();
-                data = traces.putIfAbsent(pooledTrace, newData);
-                if (data == null) {
-                    // cannot reuse the pooled trace anymore!
-                    added = true;
-                    data = newData;
-                } else {
-                    added = false;
-                }
-            } else {
-                added = false;
-            }
-            if (added) {
-                // replace it!
-                TRACE.set(new Trace());
-            } else {
-                pooledTrace.clear();
+        static int siteOf(long traceKey) {
+            return (int) traceKey;
+        }
+
+        /**
+         * @return the trace key of the updated trace
+         */
+        protected final long updateTraceCount(Class interfaceClazz, int site) {
+            final long traceKey = traceKey(ClassInfo.of(interfaceClazz).id, site);
+            markDirty();
+            if (!traces.increment(traceKey)) {
+                // no full stack traces for the rejected traces, to not grow without limits
+                overflowTraces().increment(traceKey);
+                return traceKey;
             }
-            data.weakIncrementUpdateCount();
             final int samplingPeriod = METRONOME_PERIOD_MS.get();
             if (samplingPeriod >= 0) {
+                final TraceData data = sampledTraces.computeIfAbsent(traceKey, k -> new TraceData());
                 if (samplingPeriod == 0) {
                     data.addFullStackTrace();
                 } else {
@@ -266,14 +470,50 @@ public class TraceInstanceOf {
                     }
                 }
             }
+            return traceKey;
+        }
+
+        /**
+         * Swaps the counters with empty ones: the updates racing with it can be lost.
+         */
+        protected void reset() {
+            final TraceCounterTable traces;
+            // not racing with the promotion of the overflow traces
+            synchronized (this) {
+                traces = this.traces;
+                this.traces = newTraceCounterTable();
+                sampledTraces = new ConcurrentHashMap<>();
+                overflowTraces = null;
+                promotedTraces = NO_TRACES;
+            }
+            traces.release();
+            markDirty();
+        }
+
+        /**
+         * @return the (estimated, if sampling) cross-thread update count of the trace
+         */
+        protected long crossThreadCount(long traceKey) {
+            return 0;
         }
 
+        /**
+         * @return the (estimated, if sampling) cross-thread update count
+         */
+        protected long crossThreadCount() {
+            return 0;
+        }
+
+        protected Snapshot.ThreadPairCount[] threadPairs() {
+            return null;
+        }
+
+        /**
+         * @return the (estimated, if sampling) update count
+         */
         public long count() {
-            long count = 0;
-            for (Map.Entry<Trace, TraceData> trace : traces.entrySet()) {
-                count += trace.getValue().count;
-            }
-            return count;
+            final TraceHeavyHitters overflowTraces = this.overflowTraces;
+            return TypeCheckSampler.estimate(traces.count() + (overflowTraces == null ? 0 : overflowTraces.count()));
         }
 
         public static class Snapshot implements Comparable<Snapshot> {
@@ -283,41 +523,81 @@ public class TraceInstanceOf {
                 public static class ClassCount {
                     public final Class interfaceClazz;
                     public final long count;
-
-                    private ClassCount(final Class interfaceClazz, final long count) {
+                    // the part of count happened on a different thread from the previous update
+                    public final long crossThreadCount;
+                    // if count is an upper bound, estimated for a trace which doesn't fit (or didn't, at first) into
+                    // the bounded traces
+                    public final boolean approximate;
+
+                    private ClassCount(final Class interfaceClazz, final long count, final long crossThreadCount,
+                                       final boolean approximate) {
                         this.interfaceClazz = interfaceClazz;
                         this.count = count;
+                        this.crossThreadCount = crossThreadCount;
+                        this.approximate = approximate;
                     }
                 }
 
                 public final String trace;
                 public final ClassCount[] interfaceSeenCounters;
+                // the distinct concrete classes checked on the site, up to ReceiverProfiles.MEGAMORPHIC
+                public final int receivers;
 
-                private TraceSnapshot(final String trace, final ClassCount[] interfaceSeenCounters) {
+                private TraceSnapshot(final String trace, final ClassCount[] interfaceSeenCounters, final int receivers) {
                     this.trace = trace;
                     this.interfaceSeenCounters = interfaceSeenCounters;
+                    this.receivers = receivers;
+                }
+            }
+
+            public static class ThreadPairCount {
+                public final String fromThread;
+                public final String toThread;
+                public final long count;
+
+                private ThreadPairCount(final String fromThread, final String toThread, final long count) {
+                    this.fromThread = fromThread;
+                    this.toThread = toThread;
+                    this.count = count;
                 }
             }
 
             public final Class clazz;
             public final Class[] seen;
             public final TraceSnapshot[] traces;
+            // ordered by descending samples
             public final StackTraceElement[][] fullStackFrames;
+            // the samples of each full stack trace
+            public final long[] fullStackFrameSamples;
             public final long updateCount;
-
-            private Snapshot(Class clazz, Class[] seen, TraceSnapshot[] traces, StackTraceElement[][] fullStackFrame) {
+            // the observed update count: it differs from updateCount, which is estimated, if sampling
+            public final long samples;
+            public final long crossThreadUpdateCount;
+            // null if cross-thread updates are not tracked
+            public final ThreadPairCount[] threadPairs;
+            // the part of updateCount of the traces which don't fit into the bounded traces
+            public final long overflowUpdateCount;
+
+            private Snapshot(Class clazz, Class[] seen, TraceSnapshot[] traces, StackTraceElement[][] fullStackFrame,
+                             long[] fullStackFrameSamples, long samples,
+                             ThreadPairCount[] threadPairs, long updateCount, long overflowUpdateCount) {
                 this.clazz = clazz;
+                this.overflowUpdateCount = overflowUpdateCount;
+                this.samples = samples;
+                this.threadPairs = threadPairs;
+                this.crossThreadUpdateCount = crossThreadUpdateCount(traces);
                 this.seen = seen;
                 this.fullStackFrames = fullStackFrame;
+                this.fullStackFrameSamples = fullStackFrameSamples;
                 this.traces = traces;
-                this.updateCount = updateCount(traces);
+                this.updateCount = updateCount;
             }
 
-            private static long updateCount(TraceSnapshot[] traces) {
+            private static long crossThreadUpdateCount(TraceSnapshot[] traces) {
                 long count = 0;
                 for (TraceSnapshot trace : traces) {
                     for (TraceSnapshot.ClassCount counter : trace.interfaceSeenCounters) {
-                        count += counter.count;
+                        count += counter.crossThreadCount;
                     }
                 }
                 return count;
@@ -338,7 +618,8 @@ public class TraceInstanceOf {
                 // order update count(s) based on
                 Arrays.sort(classCounts,
                         Comparator.<Snapshot.TraceSnapshot.ClassCount>comparingLong(classCount -> classCount.count).reversed());
-                traceSnapshots[i] = new Snapshot.TraceSnapshot(topStackTrace.getKey(), classCounts);
+                final int receivers = ReceiverProfiles.receiversOf(CallSiteRegistry.idOf(topStackTrace.getKey()));
+                traceSnapshots[i] = new Snapshot.TraceSnapshot(topStackTrace.getKey(), classCounts, receivers);
                 i++;
             }
             // order trace snapshot(s) based on total (ie sum) update count
@@ -368,168 +649,375 @@ public class TraceInstanceOf {
             return interfaceClasses;
         }
 
-        private static StackTraceElement[][] buildUnorderedFullStackTraces(Set<StackTraceArrayList> fullStackFrames) {
-            final StackTraceElement[][] fullStackTraces = new StackTraceElement[fullStackFrames.size()][];
-            int z = 0;
-            for (StackTraceArrayList fullStackFrame : fullStackFrames) {
-                fullStackTraces[z] = fullStackFrame.toArray(new StackTraceElement[0]);
-                z++;
-            }
+        private static CallTree.Node[] buildOrderedFullStackTraces(Map<CallTree.Node, Counter> fullStackFrames) {
+            final CallTree.Node[] fullStackTraces = fullStackFrames.keySet().toArray(new CallTree.Node[0]);
+            Arrays.sort(fullStackTraces,
+                    Comparator.<CallTree.Node>comparingLong(stackTrace -> fullStackFrames.get(stackTrace).value).reversed());
             return fullStackTraces;
         }
 
         public Snapshot snapshot() {
-            final int tracesCount = traces.size();
-            if (tracesCount == 0) {
+            final TraceCounterTable traces = this.traces;
+            final TraceHeavyHitters overflowTraces = this.overflowTraces;
+            if (traces.isEmpty() && overflowTraces == null) {
                 return null;
             }
-            final Map<String, List<Snapshot.TraceSnapshot.ClassCount>> topStackTraces = new HashMap<>(tracesCount);
-            final Set<StackTraceArrayList> fullStackFrames = new HashSet<>(tracesCount);
-
+            final Map<String, List<Snapshot.TraceSnapshot.ClassCount>> topStackTraces = new HashMap<>();
+            final Map<CallTree.Node, Counter> fullStackFrames = new HashMap<>();
+            for (TraceData traceData : sampledTraces.values()) {
+                traceData.sampledStackTraces.forEach((stackTrace, samples) ->
+                        fullStackFrames.computeIfAbsent(stackTrace, k -> new Counter()).value += samples.get());
+            }
             final Map<Class, Counter> interfaceCounters = new HashMap<>();
-            traces.forEach((trace, traceData) -> {
-                for (StackTraceArrayList fullStackTrace : traceData.sampledStackTraces) {
-                    fullStackFrames.add(fullStackTrace);
-                }
-                topStackTraces.computeIfAbsent(trace.trace, t -> new ArrayList<>(1))
-                        .add(new Snapshot.TraceSnapshot.ClassCount(trace.interfaceClazz, traceData.count));
-                interfaceCounters.computeIfAbsent(trace.interfaceClazz, t -> new Counter()).value += traceData.count;
+            final Counter samples = new Counter();
+            final Counter tracesUpdateCount = new Counter();
+            final long[] promotedTraces = this.promotedTraces;
+            traces.forEach((traceKey, sampledUpdateCount) -> {
+                samples.value += sampledUpdateCount;
+                final long updateCount = TypeCheckSampler.estimate(sampledUpdateCount);
+                tracesUpdateCount.value += updateCount;
+                // resolve the trace and the interface just now, out of the hot path
+                final String trace = CallSiteRegistry.trace(siteOf(traceKey));
+                final Class interfaceClazz = ClassInfo.byId(interfaceIdOf(traceKey)).clazz;
+                topStackTraces.computeIfAbsent(trace, t -> new ArrayList<>(1))
+                        .add(new Snapshot.TraceSnapshot.ClassCount(interfaceClazz, updateCount, crossThreadCount(traceKey),
+                                isPromoted(promotedTraces, traceKey)));
+                interfaceCounters.computeIfAbsent(interfaceClazz, t -> new Counter()).value += updateCount;
             });
+            long overflowUpdateCount = 0;
+            if (overflowTraces != null) {
+                final long overflowSamples = overflowTraces.count();
+                samples.value += overflowSamples;
+                overflowUpdateCount = TypeCheckSampler.estimate(overflowSamples);
+                overflowTraces.forEach((traceKey, sampledUpdateCount) -> {
+                    final long updateCount = TypeCheckSampler.estimate(sampledUpdateCount);
+                    final String trace = CallSiteRegistry.trace(siteOf(traceKey));
+                    final Class interfaceClazz = ClassInfo.byId(interfaceIdOf(traceKey)).clazz;
+                    // the cross-thread updates of these traces are not tracked
+                    topStackTraces.computeIfAbsent(trace, t -> new ArrayList<>(1))
+                            .add(new Snapshot.TraceSnapshot.ClassCount(interfaceClazz, updateCount, 0, true));
+                    interfaceCounters.computeIfAbsent(interfaceClazz, t -> new Counter()).value += updateCount;
+                });
+            }
             final Snapshot.TraceSnapshot[] traceSnapshots = buildOrderedTraceSnapshots(topStackTraces);
             final Class[] interfaceClasses = buildOrderedInterfaceClasses(interfaceCounters);
-            final StackTraceElement[][] fullStackTraces = buildUnorderedFullStackTraces(fullStackFrames);
+            // resolve the frames just now, out of the hot path
+            final CallTree.Node[] orderedFullStackFrames = buildOrderedFullStackTraces(fullStackFrames);
+            final StackTraceElement[][] fullStackTraces = new StackTraceElement[orderedFullStackFrames.length][];
+            final long[] fullStackTraceSamples = new long[orderedFullStackFrames.length];
+            for (int i = 0; i < orderedFullStackFrames.length; i++) {
+                fullStackTraces[i] = orderedFullStackFrames[i].stackTrace();
+                fullStackTraceSamples[i] = fullStackFrames.get(orderedFullStackFrames[i]).value;
+            }
             return new TraceCounter.Snapshot(clazz, interfaceClasses, traceSnapshots,
-                    fullStackTraces);
+                    fullStackTraces, fullStackTraceSamples, samples.value, threadPairs(),
+                    tracesUpdateCount.value + overflowUpdateCount, overflowUpdateCount);
         }
 
     }
 
     private static final AppendOnlyList<TypePollutionTraceCounter> TYPE_POLLUTION_COUNTERS = new AppendOnlyList<>();
     private static final AppendOnlyList<MissTraceCounter> MISS_COUNTERS = new AppendOnlyList<>();
+    // the site reports need the counts of all the traces, not just of the reported types
+    private static final TraceCounterIndex TYPE_POLLUTION_INDEX = new TraceCounterIndex(Agent.REPORT_SITES > 0, Agent.RATE_WINDOWS);
+    private static final TraceCounterIndex MISS_INDEX = new TraceCounterIndex(Agent.REPORT_SITES > 0, Agent.RATE_WINDOWS);
 
-    private static final ClassValue<TypePollutionTraceCounter> TYPE_POLLUTION_COUNTER_CACHE = new ClassValue<>() {
-        @Override
-        protected TypePollutionTraceCounter computeValue(Class<?> aClass) {
-            final TypePollutionTraceCounter counter = new TypePollutionTraceCounter(aClass);
-            TYPE_POLLUTION_COUNTERS.add(counter);
+    private static TypePollutionTraceCounter typePollutionCounterOf(ClassInfo info) {
+        TypePollutionTraceCounter counter = info.typePollutionCounter;
+        if (counter != null) {
             return counter;
         }
-    };
-
-    private static final ClassValue<MissTraceCounter> MISS_COUNTER_CACHE = new ClassValue<>() {
-        @Override
-        protected MissTraceCounter computeValue(Class<?> aClass) {
-            final MissTraceCounter counter = new MissTraceCounter(aClass);
-            MISS_COUNTERS.add(counter);
+        synchronized (info) {
+            counter = info.typePollutionCounter;
+            if (counter == null) {
+                counter = new TypePollutionTraceCounter(info.clazz);
+                TYPE_POLLUTION_COUNTERS.add(counter);
+                info.typePollutionCounter = counter;
+            }
             return counter;
         }
-    };
+    }
 
-    public static boolean traceIsInstance(Class interfaceClazz, Object o, String trace) {
-        if (!interfaceClazz.isInstance(o)) {
-            if (o != null && isTracingStarted() && interfaceClazz.isInterface()) {
-                MISS_COUNTER_CACHE.get(o.getClass()).onTypeCheckMiss(interfaceClazz, trace);
+    private static MissTraceCounter missCounterOf(ClassInfo info) {
+        MissTraceCounter counter = info.missCounter;
+        if (counter != null) {
+            return counter;
+        }
+        synchronized (info) {
+            counter = info.missCounter;
+            if (counter == null) {
+                counter = new MissTraceCounter(info.clazz);
+                MISS_COUNTERS.add(counter);
+                info.missCounter = counter;
             }
-            return false;
+            return counter;
         }
+    }
+
+    // the trace* probes are used by classes which cannot use invokedynamic (ie pre Java 7 class files):
+    // the others are linked through TraceBootstraps, which already takes care of the tracing state
+    public static boolean traceIsInstance(Class interfaceClazz, Object o, int site) {
         if (!isTracingStarted()) {
-            return true;
+            return interfaceClazz.isInstance(o);
         }
-        // unnecessary tracing
-        if (!interfaceClazz.isInterface()) {
-            return true;
+        return onIsInstance(interfaceClazz, o, site);
+    }
+
+    public static boolean traceIsAssignableFrom(Class interfaceClazz, Class oClazz, boolean result, int site) {
+        if (!isTracingStarted()) {
+            return result;
         }
-        TYPE_POLLUTION_COUNTER_CACHE.get(o.getClass()).onTypeCheckHit(interfaceClazz, trace);
-        return true;
+        return onIsAssignableFrom(interfaceClazz, oClazz, result, site);
     }
 
-    public static boolean traceIsAssignableFrom(Class interfaceClazz, Class oClazz, boolean result, String trace) {
-        if (!result) {
-            if (isTracingStarted() && interfaceClazz.isInterface()) {
-                MISS_COUNTER_CACHE.get(oClazz).onTypeCheckMiss(interfaceClazz, trace);
-            }
-            return false;
+    public static void traceCast(Class interfaceClazz, Object o, int site) {
+        if (!isTracingStarted()) {
+            return;
         }
+        onCast(interfaceClazz, o, site);
+    }
+
+    public static boolean traceInstanceOf(Object o, Class interfaceClazz, int site) {
         if (!isTracingStarted()) {
-            return true;
+            return interfaceClazz.isInstance(o);
         }
-        if (!interfaceClazz.isInterface()) {
-            return true;
+        return onInstanceOf(o, interfaceClazz, site);
+    }
+
+    public static void traceCheckcast(Object o, Class interfaceClazz, int site) {
+        if (!isTracingStarted()) {
+            return;
         }
-        TYPE_POLLUTION_COUNTER_CACHE.get(oClazz).onTypeCheckHit(interfaceClazz, trace);
-        return true;
+        onCheckcast(o, interfaceClazz, site);
     }
 
-    public static void traceCast(Class interfaceClazz, Object o, String trace) {
+    public static void traceAastore(Object[] array, int index, Object value, int site) {
         if (!isTracingStarted()) {
+            array[index] = value;
             return;
         }
-        if (!interfaceClazz.isInterface()) {
+        onAastore(array, index, value, site);
+    }
+
+    private static boolean isTracingStarted() {
+        return TraceBootstraps.isTracing();
+    }
+
+    private static void typeCheckHit(Class clazz, Class interfaceClazz, int site) {
+        final ClassInfo info = ClassInfo.of(clazz);
+        ReceiverProfiles.record(site, info.id);
+        if (!info.canPollute) {
             return;
         }
-        if (!interfaceClazz.isInstance(o)) {
+        updateTypeCheckHit(info, interfaceClazz, site, Thread.currentThread());
+    }
+
+    private static void typeCheckMiss(Class clazz, Class interfaceClazz, int site) {
+        final ClassInfo info = ClassInfo.of(clazz);
+        ReceiverProfiles.record(site, info.id);
+        // a miss scans the whole secondary supers, but it's cheap if there are less than 2
+        if (!info.canPollute) {
             return;
         }
-        TYPE_POLLUTION_COUNTER_CACHE.get(o.getClass()).onTypeCheckHit(interfaceClazz, trace);
+        if (Agent.ASYNC_EVENTS) {
+            TraceEvents.miss(info, interfaceClazz, site);
+        } else {
+            updateTypeCheckMiss(info, interfaceClazz, site);
+        }
     }
 
-    public static boolean traceInstanceOf(Object o, Class interfaceClazz, String trace) {
+    static void updateTypeCheckHit(ClassInfo info, Class interfaceClazz, int site, Thread thread) {
+        typePollutionCounterOf(info).onTypeCheckHit(interfaceClazz, site, thread);
+    }
+
+    static void updateInvalidation(ClassInfo info, Class interfaceClazz, int site, long threadPairKey) {
+        typePollutionCounterOf(info).onInvalidation(interfaceClazz, site, threadPairKey);
+    }
+
+    static void updateTypeCheckMiss(ClassInfo info, Class interfaceClazz, int site) {
+        missCounterOf(info).onTypeCheckMiss(interfaceClazz, site);
+    }
+
+    static boolean onIsInstance(Class interfaceClazz, Object o, int site) {
         if (!interfaceClazz.isInstance(o)) {
-            if (o!= null && isTracingStarted() && interfaceClazz.isInterface()) {
-                MISS_COUNTER_CACHE.get(o.getClass()).onTypeCheckMiss(interfaceClazz, trace);
+            if (o != null && ClassInfo.isSecondarySuper(interfaceClazz) && TypeCheckSampler.sample()) {
+                typeCheckMiss(o.getClass(), interfaceClazz, site);
             }
             return false;
         }
-        if (!isTracingStarted()) {
+        // unnecessary tracing
+        if (!ClassInfo.isSecondarySuper(interfaceClazz)) {
             return true;
         }
-        if (!interfaceClazz.isInterface()) {
+        typeCheckHit(o.getClass(), interfaceClazz, site);
+        return true;
+    }
+
+    static boolean onIsAssignableFrom(Class interfaceClazz, Class oClazz, boolean result, int site) {
+        if (!result) {
+            if (ClassInfo.isSecondarySuper(interfaceClazz) && TypeCheckSampler.sample()) {
+                typeCheckMiss(oClazz, interfaceClazz, site);
+            }
+            return false;
+        }
+        if (!ClassInfo.isSecondarySuper(interfaceClazz)) {
             return true;
         }
-        TYPE_POLLUTION_COUNTER_CACHE.get(o.getClass()).onTypeCheckHit(interfaceClazz, trace);
+        typeCheckHit(oClazz, interfaceClazz, site);
         return true;
     }
 
-    private static boolean isTracingStarted() {
-        return TRACING_STARTED.get();
+    static void onCast(Class interfaceClazz, Object o, int site) {
+        if (!ClassInfo.isSecondarySuper(interfaceClazz)) {
+            return;
+        }
+        if (!interfaceClazz.isInstance(o)) {
+            return;
+        }
+        typeCheckHit(o.getClass(), interfaceClazz, site);
     }
 
-    public static void traceCheckcast(Object o, Class interfaceClazz, String trace) {
-        if (!isTracingStarted()) {
-            return;
+    static boolean onInstanceOf(Object o, Class interfaceClazz, int site) {
+        if (!interfaceClazz.isInstance(o)) {
+            if (o != null && ClassInfo.isSecondarySuper(interfaceClazz) && TypeCheckSampler.sample()) {
+                typeCheckMiss(o.getClass(), interfaceClazz, site);
+            }
+            return false;
+        }
+        if (!ClassInfo.isSecondarySuper(interfaceClazz)) {
+            return true;
         }
-        if (!interfaceClazz.isInterface()) {
+        typeCheckHit(o.getClass(), interfaceClazz, site);
+        return true;
+    }
+
+    static void onCheckcast(Object o, Class interfaceClazz, int site) {
+        if (!ClassInfo.isSecondarySuper(interfaceClazz)) {
             return;
         }
         if (!interfaceClazz.isInstance(o)) {
             return;
         }
-        TYPE_POLLUTION_COUNTER_CACHE.get(o.getClass()).onTypeCheckHit(interfaceClazz, trace);
+        typeCheckHit(o.getClass(), interfaceClazz, site);
     }
 
-    private static Collection<TraceCounter.Snapshot> orderedCountersSnapshots(AppendOnlyList<? extends TraceCounter> counters, final int minUpdateCount) {
-        final int size = (int) counters.size();
-        ArrayList<TraceCounter.Snapshot> snapshots = new ArrayList<>(size);
-        counters.forEach(traceCounter -> {
-            final int minCount = Math.max(1, minUpdateCount);
-            if (traceCounter.count() > minCount) {
-                final TraceCounter.Snapshot snapshot = traceCounter.snapshot();
-                if (snapshot != null) {
-                    snapshots.add(snapshot);
+    /**
+     * Traces the store check of {@code value} against the component type of {@code array}, then stores it.
+     */
+    static void onAastore(Object[] array, int index, Object value, int site) {
+        if (array != null && value != null) {
+            final Class<?> componentType = array.getClass().getComponentType();
+            if (ClassInfo.isSecondarySuper(componentType)) {
+                if (componentType.isInstance(value)) {
+                    typeCheckHit(value.getClass(), componentType, site);
+                } else if (TypeCheckSampler.sample()) {
+                    // the store below throws ArrayStoreException
+                    typeCheckMiss(value.getClass(), componentType, site);
+                }
+            }
+        }
+        array[index] = value;
+    }
+
+    /**
+     * Traces the type checks of a {@code SwitchBootstraps::typeSwitch}: {@code selector} is checked against the class
+     * labels, starting from the {@code restart} index, up to the first matching one.<br>
+     * The other labels (eg {@link String}s, {@link Integer}s or enum constants) are not considered, hence the checks of
+     * the class labels following a matching one are traced too.
+     */
+    static void onTypeSwitch(Object selector, int restart, int[] indexes, Class<?>[] labels, int site) {
+        if (selector == null) {
+            return;
+        }
+        final Class<?> clazz = selector.getClass();
+        for (int i = 0; i < labels.length; i++) {
+            if (indexes[i] < restart) {
+                continue;
+            }
+            final Class<?> label = labels[i];
+            if (label.isInstance(selector)) {
+                if (ClassInfo.isSecondarySuper(label)) {
+                    typeCheckHit(clazz, label, site);
                 }
+                return;
+            }
+            if (ClassInfo.isSecondarySuper(label) && TypeCheckSampler.sample()) {
+                typeCheckMiss(clazz, label, site);
             }
-        });
-        snapshots.sort(Comparator.reverseOrder());
-        // collect
-        return snapshots;
+        }
+    }
+
+    private static Collection<TraceCounter.Snapshot> orderedCountersSnapshots(TraceCounterIndex index, final int minUpdateCount, final int limit) {
+        if (Agent.ASYNC_EVENTS) {
+            // include the records yet to be aggregated
+            TraceEvents.drain();
+        }
+        return index.orderedSnapshots(minUpdateCount, limit, Agent.PARALLEL_SNAPSHOTS);
+    }
+
+    /**
+     * @return the costs of the checks of all the types (with an update count), merged by concrete class, interface
+     * and site: it requires {@code io.type.pollution.report.sites}
+     */
+    static Collection<TypeCheckCost.SiteCost> siteCosts() {
+        if (Agent.ASYNC_EVENTS) {
+            // include the records yet to be aggregated
+            TraceEvents.drain();
+        }
+        final Map<TypeCheckCost.SiteKey, TypeCheckCost.SiteCost> sites = new HashMap<>();
+        TYPE_POLLUTION_INDEX.forEachTraceCounts((clazz, traceCounts) -> TypeCheckCost.addSiteCosts(sites, clazz, traceCounts, false));
+        MISS_INDEX.forEachTraceCounts((clazz, traceCounts) -> TypeCheckCost.addSiteCosts(sites, clazz, traceCounts, true));
+        return sites.values();
+    }
+
+    /**
+     * Resets all the counters, including the ones of the classes whose type checks are not reported yet.
+     */
+    static void resetCounters() {
+        TYPE_POLLUTION_COUNTERS.forEach(TraceCounter::reset);
+        MISS_COUNTERS.forEach(TraceCounter::reset);
+        if (Agent.BOUNDED_TRACES) {
+            // shared by all the counters
+            TraceHeavyHitters.clearSketch();
+        }
+    }
+
+    static void forEachTypePollutionCounter(Consumer<? super TraceCounter> consumer) {
+        TYPE_POLLUTION_COUNTERS.forEach(consumer);
+    }
+
+    static void forEachMissCounter(Consumer<? super TraceCounter> consumer) {
+        MISS_COUNTERS.forEach(consumer);
+    }
+
+    /**
+     * Visits the type pollution counters changed since the last call, see {@link TraceWindows}.
+     */
+    static void forEachChangedTypePollutionCounter(Consumer<? super TraceCounter> consumer) {
+        TYPE_POLLUTION_INDEX.forEachChanged(consumer);
+    }
+
+    /**
+     * Visits the miss counters changed since the last call, see {@link TraceWindows}.
+     */
+    static void forEachChangedMissCounter(Consumer<? super TraceCounter> consumer) {
+        MISS_INDEX.forEachChanged(consumer);
     }
 
     public static Collection<TraceCounter.Snapshot> orderedTypePollutionCountersSnapshot(final int minUpdateCount) {
-        return orderedCountersSnapshots(TYPE_POLLUTION_COUNTERS, minUpdateCount);
+        return orderedTypePollutionCountersSnapshot(minUpdateCount, Integer.MAX_VALUE);
+    }
+
+    public static Collection<TraceCounter.Snapshot> orderedTypePollutionCountersSnapshot(final int minUpdateCount, final int limit) {
+        return orderedCountersSnapshots(TYPE_POLLUTION_INDEX, minUpdateCount, limit);
     }
 
     public static Collection<TraceCounter.Snapshot> orderedMissCountersSnapshot(final int minUpdateCount) {
-        return orderedCountersSnapshots(MISS_COUNTERS, minUpdateCount);
+        return orderedMissCountersSnapshot(minUpdateCount, Integer.MAX_VALUE);
+    }
+
+    public static Collection<TraceCounter.Snapshot> orderedMissCountersSnapshot(final int minUpdateCount, final int limit) {
+        return orderedCountersSnapshots(MISS_INDEX, minUpdateCount, limit);
     }
 
 }
@@ -0,0 +1,61 @@
+package io.type.pollution.agent;
+
+import jdk.jfr.EventType;
+import jdk.jfr.FlightRecorder;
+
+/**
+ * JFR integration: {@link TypeCheckEvent}s committed by the application threads, throttled per counter, and the
+ * periodic {@link TypeCheckCountEvent}s with the cumulative counts.
+ * <p>
+ * This class MUST NOT be loaded if {@code jdk.jfr} isn't available.
+ */
+final class TraceJfr {
+
+    // to not allocate an event which won't be committed
+    private static final EventType TYPE_CHECK_EVENT_TYPE = EventType.getEventType(TypeCheckEvent.class);
+
+    private TraceJfr() {
+
+    }
+
+    static void register() {
+        FlightRecorder.register(TypeCheckEvent.class);
+        FlightRecorder.addPeriodicEvent(TypeCheckCountEvent.class, TraceJfr::commitCounts);
+    }
+
+    static void typeCheck(TraceInstanceOf.TraceCounter counter, Class interfaceClazz, int site, boolean hit,
+                          Thread previousThread) {
+        if (!TYPE_CHECK_EVENT_TYPE.isEnabled() || !counter.tryAcquireEvent(Agent.JFR_THROTTLE_NANOS)) {
+            return;
+        }
+        final TypeCheckEvent event = new TypeCheckEvent();
+        event.concreteClass = counter.clazz();
+        event.interfaceClass = interfaceClazz;
+        event.site = CallSiteRegistry.trace(site);
+        event.hit = hit;
+        event.previousThread = previousThread;
+        event.commit();
+    }
+
+    private static void commitCounts() {
+        if (Agent.ASYNC_EVENTS) {
+            // include the records yet to be aggregated
+            TraceEvents.drain();
+        }
+        TraceInstanceOf.forEachTypePollutionCounter(counter -> commitCountsOf(counter, true));
+        TraceInstanceOf.forEachMissCounter(counter -> commitCountsOf(counter, false));
+    }
+
+    private static void commitCountsOf(TraceInstanceOf.TraceCounter counter, boolean hit) {
+        counter.forEachTraceCount((traceKey, sampledCount) -> {
+            final TypeCheckCountEvent event = new TypeCheckCountEvent();
+            event.concreteClass = counter.clazz();
+            event.interfaceClass = ClassInfo.byId(TraceInstanceOf.TraceCounter.interfaceIdOf(traceKey)).clazz;
+            event.site = CallSiteRegistry.trace(TraceInstanceOf.TraceCounter.siteOf(traceKey));
+            event.hit = hit;
+            event.count = TypeCheckSampler.estimate(sampledCount);
+            event.crossThreadCount = counter.crossThreadCount(traceKey);
+            event.commit();
+        });
+    }
+}
@@ -0,0 +1,308 @@
+package io.type.pollution.agent;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves the {@link TraceInstanceOf} counters in the OpenMetrics text format, on {@code localhost}.
+ * <p>
+ * Scrapes read the counters directly, without building any {@link TraceInstanceOf.TraceCounter.Snapshot}: the
+ * per-site metrics are limited to the top K sites, selected with a bounded heap.
+ */
+final class TraceMetricsServer {
+
+    private static final String CONTENT_TYPE = "application/openmetrics-text; version=1.0.0; charset=utf-8";
+
+    /**
+     * Bounded min-heap of the sites (per concrete class and checked interface) with the highest counts.
+     */
+    private static final class TopSites implements TraceCounterTable.EntryConsumer {
+        private final int[] classIds;
+        private final long[] traceKeys;
+        private final long[] counts;
+        private int size;
+        private int classId;
+
+        private TopSites(int capacity) {
+            classIds = new int[capacity];
+            traceKeys = new long[capacity];
+            counts = new long[capacity];
+        }
+
+        private void clear() {
+            size = 0;
+        }
+
+        @Override
+        public void accept(long traceKey, long sampledCount) {
+            final long count = TypeCheckSampler.estimate(sampledCount);
+            if (size < counts.length) {
+                set(size, classId, traceKey, count);
+                siftUp(size);
+                size++;
+            } else if (size > 0 && count > counts[0]) {
+                set(0, classId, traceKey, count);
+                siftDown(0, size);
+            }
+        }
+
+        private void set(int i, int classId, long traceKey, long count) {
+            classIds[i] = classId;
+            traceKeys[i] = traceKey;
+            counts[i] = count;
+        }
+
+        private void swap(int i, int j) {
+            final int classId = classIds[i];
+            final long traceKey = traceKeys[i];
+            final long count = counts[i];
+            set(i, classIds[j], traceKeys[j], counts[j]);
+            set(j, classId, traceKey, count);
+        }
+
+        private void siftUp(int i) {
+            while (i > 0) {
+                final int parent = (i - 1) >>> 1;
+                if (counts[parent] <= counts[i]) {
+                    return;
+                }
+                swap(i, parent);
+                i = parent;
+            }
+        }
+
+        private void siftDown(int i, int size) {
+            while (true) {
+                final int left = 2 * i + 1;
+                if (left >= size) {
+                    return;
+                }
+                final int right = left + 1;
+                final int smallest = right < size && counts[right] < counts[left] ? right : left;
+                if (counts[i] <= counts[smallest]) {
+                    return;
+                }
+                swap(i, smallest);
+                i = smallest;
+            }
+        }
+
+        /**
+         * Heap-sorts the sites, by descending count.
+         */
+        private void sort() {
+            for (int last = size - 1; last > 0; last--) {
+                swap(0, last);
+                siftDown(0, last);
+            }
+        }
+
+        private long countOf(int classId, long traceKey) {
+            for (int i = 0; i < size; i++) {
+                if (classIds[i] == classId && traceKeys[i] == traceKey) {
+                    return counts[i];
+                }
+            }
+            return -1;
+        }
+
+        private void copyFrom(TopSites sites) {
+            System.arraycopy(sites.classIds, 0, classIds, 0, sites.size);
+            System.arraycopy(sites.traceKeys, 0, traceKeys, 0, sites.size);
+            System.arraycopy(sites.counts, 0, counts, 0, sites.size);
+            size = sites.size;
+        }
+    }
+
+    private final TopSites topSwitchSites;
+    private final TopSites topMissSites;
+    // the top sites of the previous scrape, to compute their rates
+    private final TopSites lastTopSwitchSites;
+    private final TopSites lastTopMissSites;
+    private long lastScrapeNanos;
+    private long lastScrapeDurationNanos;
+    private final StringBuilder metrics = new StringBuilder();
+
+    private TraceMetricsServer(int topSites) {
+        topSwitchSites = new TopSites(topSites);
+        topMissSites = new TopSites(topSites);
+        lastTopSwitchSites = new TopSites(topSites);
+        lastTopMissSites = new TopSites(topSites);
+    }
+
+    static void start(int port, int topSites) {
+        // the dispatcher thread inherits the daemon status of the thread starting the server
+        final Thread starter = new Thread(() -> {
+            try {
+                final TraceMetricsServer metrics = new TraceMetricsServer(Math.max(0, topSites));
+                final HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+                server.createContext("/metrics", metrics::handle);
+                server.setExecutor(Executors.newSingleThreadExecutor(r -> {
+                    final Thread t = new Thread(r);
+                    t.setDaemon(true);
+                    t.setName("type-pollution-metrics");
+                    return t;
+                }));
+                server.start();
+            } catch (IOException e) {
+                System.err.println("ERROR while starting the Type Pollution metrics endpoint on port " + port + " due to: " + e);
+            }
+        });
+        starter.setName("type-pollution-metrics-starter");
+        starter.setDaemon(true);
+        starter.start();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        final byte[] body;
+        synchronized (this) {
+            body = scrape().toString().getBytes(StandardCharsets.UTF_8);
+        }
+        exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static void appendLabelValue(StringBuilder metrics, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            switch (c) {
+                case '\\':
+                    metrics.append("\\\\");
+                    break;
+                case '"':
+                    metrics.append("\\\"");
+                    break;
+                case '\n':
+                    metrics.append("\\n");
+                    break;
+                default:
+                    metrics.append(c);
+            }
+        }
+    }
+
+    private void appendClassSample(String name, TraceInstanceOf.TraceCounter counter, long value) {
+        metrics.append(name).append("{class=\"");
+        appendLabelValue(metrics, counter.clazz().getName());
+        metrics.append("\"} ").append(value).append('\n');
+    }
+
+    private void appendSiteLabels(TopSites sites, int i) {
+        final long traceKey = sites.traceKeys[i];
+        metrics.append("{class=\"");
+        appendLabelValue(metrics, ClassInfo.byId(sites.classIds[i]).clazz.getName());
+        metrics.append("\",interface=\"");
+        appendLabelValue(metrics, ClassInfo.byId(TraceInstanceOf.TraceCounter.interfaceIdOf(traceKey)).clazz.getName());
+        metrics.append("\",site=\"");
+        appendLabelValue(metrics, CallSiteRegistry.trace(TraceInstanceOf.TraceCounter.siteOf(traceKey)));
+        metrics.append("\"} ");
+    }
+
+    private void appendTopSites(String name, String help, TopSites sites, TopSites lastSites, double elapsedSecs) {
+        sites.sort();
+        metrics.append("# TYPE ").append(name).append(" counter\n");
+        metrics.append("# HELP ").append(name).append(' ').append(help).append(" (top sites)\n");
+        for (int i = 0; i < sites.size; i++) {
+            metrics.append(name).append("_total");
+            appendSiteLabels(sites, i);
+            metrics.append(sites.counts[i]).append('\n');
+        }
+        final String rateName = name + "_rate";
+        metrics.append("# TYPE ").append(rateName).append(" gauge\n");
+        metrics.append("# HELP ").append(rateName).append(' ').append(help).append(" per second, since the previous scrape (top sites)\n");
+        if (elapsedSecs > 0) {
+            for (int i = 0; i < sites.size; i++) {
+                final long lastCount = lastSites.countOf(sites.classIds[i], sites.traceKeys[i]);
+                if (lastCount < 0 || lastCount > sites.counts[i]) {
+                    continue;
+                }
+                metrics.append(rateName);
+                appendSiteLabels(sites, i);
+                metrics.append((sites.counts[i] - lastCount) / elapsedSecs).append('\n');
+            }
+        }
+        lastSites.copyFrom(sites);
+    }
+
+    private StringBuilder scrape() {
+        final long start = System.nanoTime();
+        if (Agent.ASYNC_EVENTS) {
+            // include the records yet to be aggregated
+            TraceEvents.drain();
+        }
+        metrics.setLength(0);
+        topSwitchSites.clear();
+        topMissSites.clear();
+        final long[] classes = {0};
+        metrics.append("# TYPE type_pollution_cache_switches counter\n");
+        metrics.append("# HELP type_pollution_cache_switches Secondary super cache invalidations, per concrete class\n");
+        TraceInstanceOf.forEachTypePollutionCounter(counter -> {
+            final long count = counter.count();
+            if (count == 0) {
+                return;
+            }
+            classes[0]++;
+            appendClassSample("type_pollution_cache_switches_total", counter, count);
+            topSwitchSites.classId = ClassInfo.of(counter.clazz()).id;
+            counter.forEachTraceCount(topSwitchSites);
+        });
+        metrics.append("# TYPE type_pollution_cross_thread_cache_switches counter\n");
+        metrics.append("# HELP type_pollution_cross_thread_cache_switches Secondary super cache invalidations on a different thread from the previous one, per concrete class\n");
+        TraceInstanceOf.forEachTypePollutionCounter(counter -> {
+            final long count = counter.crossThreadCount();
+            if (count > 0) {
+                appendClassSample("type_pollution_cross_thread_cache_switches_total", counter, count);
+            }
+        });
+        metrics.append("# TYPE type_pollution_misses counter\n");
+        metrics.append("# HELP type_pollution_misses Failed type checks against interfaces, per concrete class\n");
+        TraceInstanceOf.forEachMissCounter(counter -> {
+            final long count = counter.count();
+            if (count == 0) {
+                return;
+            }
+            classes[0]++;
+            appendClassSample("type_pollution_misses_total", counter, count);
+            topMissSites.classId = ClassInfo.of(counter.clazz()).id;
+            counter.forEachTraceCount(topMissSites);
+        });
+        final double elapsedSecs = lastScrapeNanos == 0 ? 0 : (start - lastScrapeNanos) / 1_000_000_000d;
+        appendTopSites("type_pollution_site_cache_switches", "Secondary super cache invalidations, per site",
+                topSwitchSites, lastTopSwitchSites, elapsedSecs);
+        appendTopSites("type_pollution_site_misses", "Failed type checks against interfaces, per site",
+                topMissSites, lastTopMissSites, elapsedSecs);
+        // the agent own overhead
+        metrics.append("# TYPE type_pollution_tracing gauge\n");
+        metrics.append("type_pollution_tracing ").append(TraceBootstraps.isTracing() ? 1 : 0).append('\n');
+        metrics.append("# TYPE type_pollution_sampling_period gauge\n");
+        metrics.append("type_pollution_sampling_period ").append(Agent.SAMPLING_PERIOD).append('\n');
+        metrics.append("# TYPE type_pollution_instrumented_sites gauge\n");
+        metrics.append("type_pollution_instrumented_sites ").append(ByteBuddyUtils.instrumentedSites()).append('\n');
+        metrics.append("# TYPE type_pollution_skipped_sites gauge\n");
+        metrics.append("type_pollution_skipped_sites ").append(ByteBuddyUtils.skippedSites()).append('\n');
+        metrics.append("# TYPE type_pollution_registered_call_sites gauge\n");
+        metrics.append("type_pollution_registered_call_sites ").append(CallSiteRegistry.size()).append('\n');
+        metrics.append("# TYPE type_pollution_counted_classes gauge\n");
+        metrics.append("type_pollution_counted_classes ").append(classes[0]).append('\n');
+        if (Agent.ASYNC_EVENTS) {
+            metrics.append("# TYPE type_pollution_dropped_events counter\n");
+            metrics.append("type_pollution_dropped_events_total ").append(TraceEvents.drops()).append('\n');
+        }
+        metrics.append("# TYPE type_pollution_last_scrape_duration_seconds gauge\n");
+        metrics.append("type_pollution_last_scrape_duration_seconds ").append(lastScrapeDurationNanos / 1_000_000_000d).append('\n');
+        metrics.append("# EOF\n");
+        lastScrapeNanos = start;
+        lastScrapeDurationNanos = System.nanoTime() - start;
+        return metrics;
+    }
+}
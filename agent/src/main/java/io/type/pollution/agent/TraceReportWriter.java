@@ -0,0 +1,242 @@
+package io.type.pollution.agent;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes the text reports to a file, off the reporting thread.
+ * <p>
+ * The reports are encoded to UTF-8 into pooled direct buffers by the reporting thread, then handed to a dedicated
+ * writer thread through a bounded queue: if the writer cannot keep up, the new reports are dropped. The file is
+ * rotated (before writing a report, never in the middle of it) once it exceeds a size or an age, keeping a number of
+ * rotated files ({@code file.1} being the most recent one).
+ */
+final class TraceReportWriter {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_POOLED_BUFFERS = 16;
+
+    private static final class Report {
+        final ByteBuffer[] chunks;
+        final boolean last;
+
+        private Report(ByteBuffer[] chunks, boolean last) {
+            this.chunks = chunks;
+            this.last = last;
+        }
+    }
+
+    private final Path file;
+    private final long rotateBytes;
+    private final long rotateNanos;
+    private final int rotateKeep;
+    private final ArrayBlockingQueue<Report> reports;
+    private final ConcurrentLinkedQueue<ByteBuffer> pool = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+    // guarded by this
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final Thread writer;
+    // accessed by the writer thread only
+    private FileChannel channel;
+    private long channelBytes;
+    private long channelOpenedNanos;
+    private boolean failing;
+
+    /**
+     * @param rotateBytes rotate the file once bigger than this, if {@code > 0}
+     * @param rotateSecs  rotate the file once older than this, if {@code > 0}
+     * @param rotateKeep  the number of rotated files to keep
+     * @param capacity    the maximum number of reports waiting to be written
+     */
+    TraceReportWriter(String file, long rotateBytes, long rotateSecs, int rotateKeep, int capacity) {
+        this.file = Paths.get(file);
+        this.rotateBytes = rotateBytes;
+        this.rotateNanos = TimeUnit.SECONDS.toNanos(Math.max(0, rotateSecs));
+        this.rotateKeep = Math.max(0, rotateKeep);
+        this.reports = new ArrayBlockingQueue<>(Math.max(1, capacity));
+        writer = new Thread(this::writeReports);
+        writer.setName("type-pollution-report-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private ByteBuffer acquireBuffer() {
+        final ByteBuffer buffer = pool.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+        pooled.decrementAndGet();
+        return buffer;
+    }
+
+    private void releaseBuffers(ByteBuffer[] buffers) {
+        for (ByteBuffer buffer : buffers) {
+            // the exceeding ones are left to the GC
+            if (pooled.incrementAndGet() <= MAX_POOLED_BUFFERS) {
+                pool.offer(buffer.clear());
+            } else {
+                pooled.decrementAndGet();
+            }
+        }
+    }
+
+    private synchronized ByteBuffer[] encode(CharSequence report) {
+        final List<ByteBuffer> chunks = new ArrayList<>();
+        final CharBuffer chars = CharBuffer.wrap(report);
+        encoder.reset();
+        ByteBuffer chunk = acquireBuffer();
+        while (encoder.encode(chars, chunk, true) == CoderResult.OVERFLOW) {
+            chunks.add(chunk.flip());
+            chunk = acquireBuffer();
+        }
+        while (encoder.flush(chunk) == CoderResult.OVERFLOW) {
+            chunks.add(chunk.flip());
+            chunk = acquireBuffer();
+        }
+        chunks.add(chunk.flip());
+        return chunks.toArray(new ByteBuffer[0]);
+    }
+
+    /**
+     * Hands over a report to the writer thread: a last one waits up to {@code timeoutMs} if the queue is full, while
+     * the others are dropped.
+     *
+     * @return {@code false} if the report has been dropped
+     */
+    boolean submit(CharSequence report, boolean last, long timeoutMs) {
+        final Report encoded = new Report(encode(report), last);
+        boolean submitted;
+        try {
+            submitted = last ? reports.offer(encoded, timeoutMs, TimeUnit.MILLISECONDS) : reports.offer(encoded);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            submitted = false;
+        }
+        if (!submitted) {
+            releaseBuffers(encoded.chunks);
+        }
+        return submitted;
+    }
+
+    /**
+     * Waits the writer thread to write the last report and close the file, then stops it anyway.
+     *
+     * @return {@code false} if it didn't complete within {@code timeoutMs}
+     */
+    boolean awaitClose(long timeoutMs) {
+        try {
+            writer.join(Math.max(1, timeoutMs));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (writer.isAlive()) {
+            // ie the last report has been dropped or it is still being written: don't leak the thread and the file
+            writer.interrupt();
+            return false;
+        }
+        return true;
+    }
+
+    private void writeReports() {
+        while (true) {
+            final Report report;
+            try {
+                report = reports.take();
+            } catch (InterruptedException e) {
+                closeChannel();
+                return;
+            }
+            write(report);
+            releaseBuffers(report.chunks);
+            if (report.last) {
+                closeChannel();
+                return;
+            }
+        }
+    }
+
+    private boolean rotationDue() {
+        if (rotateBytes > 0 && channelBytes >= rotateBytes) {
+            return true;
+        }
+        return rotateNanos > 0 && System.nanoTime() - channelOpenedNanos >= rotateNanos;
+    }
+
+    private Path rotatedFile(int index) {
+        return file.resolveSibling(file.getFileName() + "." + index);
+    }
+
+    private void rotate() throws IOException {
+        closeChannel();
+        if (rotateKeep == 0) {
+            Files.deleteIfExists(file);
+            return;
+        }
+        Files.deleteIfExists(rotatedFile(rotateKeep));
+        for (int i = rotateKeep - 1; i >= 1; i--) {
+            final Path rotated = rotatedFile(i);
+            if (Files.exists(rotated)) {
+                Files.move(rotated, rotatedFile(i + 1), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        Files.move(file, rotatedFile(1), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private void write(Report report) {
+        try {
+            if (channel != null && rotationDue()) {
+                rotate();
+            }
+            if (channel == null) {
+                channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                channelBytes = channel.size();
+                channelOpenedNanos = System.nanoTime();
+            }
+            final ByteBuffer[] chunks = report.chunks;
+            final ByteBuffer lastChunk = chunks[chunks.length - 1];
+            while (lastChunk.hasRemaining()) {
+                channelBytes += channel.write(chunks);
+            }
+            failing = false;
+        } catch (IOException e) {
+            // report just the first of consecutive failures, and retry with the next report
+            if (!failing) {
+                System.err.println("ERROR while writing the Type Pollution Statistics to " + file + " due to: " + e);
+            }
+            failing = true;
+            closeChannel();
+        }
+    }
+
+    private void closeChannel() {
+        final FileChannel channel = this.channel;
+        if (channel == null) {
+            return;
+        }
+        this.channel = null;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("ERROR while closing the Type Pollution Statistics dump on " + file + " due to: " + e);
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package io.type.pollution.agent;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Bounded ring of the most recent time windows of the {@link TraceInstanceOf} counters, to report the rate of
+ * events/sec (and its trend) of each class and trace, instead of the ever-growing cumulative counts.
+ * <p>
+ * Each window is the difference between 2 consecutive readings of the counters, taken by {@link #roll()}, out of the
+ * hot path: just the counters changed since the previous roll are read, and the deltas of their traces are kept
+ * unboxed. Once the counters are reset, the windows have to be {@link #clear() cleared} too.
+ */
+final class TraceWindows {
+
+    /**
+     * Open-addressing (linear probing) table of primitives, from a trace key (never {@code 0}) to a {@code long},
+     * to not box the entries of each trace.
+     */
+    private static final class TraceTable {
+        private long[] keys = new long[16];
+        private long[] values = new long[16];
+        private int size;
+
+        private static int indexOf(long[] keys, long key) {
+            final int mask = keys.length - 1;
+            int index = (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+            while (keys[index] != 0 && keys[index] != key) {
+                index = (index + 1) & mask;
+            }
+            return index;
+        }
+
+        /**
+         * @return the value of {@code traceKey}, or {@code 0} if missing
+         */
+        long get(long traceKey) {
+            return values[indexOf(keys, traceKey)];
+        }
+
+        /**
+         * @return the previous value of {@code traceKey}, or {@code 0} if it is new
+         */
+        long put(long traceKey, long value) {
+            int index = indexOf(keys, traceKey);
+            if (keys[index] == 0) {
+                if ((size + 1) * 4 > keys.length * 3) {
+                    grow();
+                    index = indexOf(keys, traceKey);
+                }
+                keys[index] = traceKey;
+                size++;
+            }
+            final long previous = values[index];
+            values[index] = value;
+            return previous;
+        }
+
+        void forEach(TraceCounterTable.EntryConsumer consumer) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != 0) {
+                    consumer.accept(keys[i], values[i]);
+                }
+            }
+        }
+
+        private void grow() {
+            final long[] keys = this.keys;
+            final long[] values = this.values;
+            this.keys = new long[keys.length * 2];
+            this.values = new long[keys.length * 2];
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != 0) {
+                    final int index = indexOf(this.keys, keys[i]);
+                    this.keys[index] = keys[i];
+                    this.values[index] = values[i];
+                }
+            }
+        }
+    }
+
+    /**
+     * The sampled count deltas of the traces of a counter, in a window.
+     */
+    private static final class TraceDeltas {
+        private long[] keys = new long[4];
+        private long[] deltas = new long[4];
+        private int size;
+        private long total;
+
+        private void add(long traceKey, long delta) {
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                deltas = Arrays.copyOf(deltas, size * 2);
+            }
+            keys[size] = traceKey;
+            deltas[size] = delta;
+            size++;
+            total += delta;
+        }
+    }
+
+    private static final class Window {
+        private final long durationNanos;
+        // just the counters changed in the window
+        private final Map<TraceInstanceOf.TraceCounter, TraceDeltas> deltas;
+
+        private Window(long durationNanos, Map<TraceInstanceOf.TraceCounter, TraceDeltas> deltas) {
+            this.durationNanos = durationNanos;
+            this.deltas = deltas;
+        }
+
+        private double ratePerSecOf(long sampledDelta) {
+            return TypeCheckSampler.estimate(sampledDelta) * 1_000_000_000d / Math.max(1, durationNanos);
+        }
+    }
+
+    static final class ClassRates {
+
+        static final class TraceRates {
+            final String trace;
+            final Class interfaceClazz;
+            // events/sec, from the oldest window to the latest one
+            final double[] rates;
+
+            private TraceRates(String trace, Class interfaceClazz, double[] rates) {
+                this.trace = trace;
+                this.interfaceClazz = interfaceClazz;
+                this.rates = rates;
+            }
+        }
+
+        final Class clazz;
+        // events/sec, from the oldest window to the latest one
+        final double[] rates;
+        final TraceRates[] traces;
+
+        private ClassRates(Class clazz, double[] rates, TraceRates[] traces) {
+            this.clazz = clazz;
+            this.rates = rates;
+            this.traces = traces;
+        }
+
+        double latestRate() {
+            return rates[rates.length - 1];
+        }
+    }
+
+    private final Consumer<Consumer<? super TraceInstanceOf.TraceCounter>> counters;
+    private final int capacity;
+    private final ArrayDeque<Window> windows;
+    // the last read count of each trace of each counter
+    private final Map<TraceInstanceOf.TraceCounter, TraceTable> lastCounts = new HashMap<>();
+    private long lastRollNanos = System.nanoTime();
+
+    /**
+     * @param counters visits the counters changed since the previous visit
+     * @param capacity the number of the most recent windows to keep
+     */
+    TraceWindows(Consumer<Consumer<? super TraceInstanceOf.TraceCounter>> counters, int capacity) {
+        this.counters = counters;
+        this.capacity = Math.max(1, capacity);
+        this.windows = new ArrayDeque<>(this.capacity);
+    }
+
+    /**
+     * Closes the current window, evicting the oldest one if there are too many.
+     */
+    synchronized void roll() {
+        final long now = System.nanoTime();
+        final Map<TraceInstanceOf.TraceCounter, TraceDeltas> deltas = new HashMap<>();
+        counters.accept(counter -> {
+            final TraceTable last = lastCounts.computeIfAbsent(counter, c -> new TraceTable());
+            final TraceDeltas counterDeltas = new TraceDeltas();
+            counter.forEachTraceCount((traceKey, count) -> {
+                final long lastCount = last.put(traceKey, count);
+                // a promoted trace starts from the estimate of its updates over the bounds, not just of the last window
+                if (lastCount == 0 && counter.isPromotedTrace(traceKey)) {
+                    return;
+                }
+                final long delta = count - lastCount;
+                if (delta > 0) {
+                    counterDeltas.add(traceKey, delta);
+                }
+            });
+            if (counterDeltas.size > 0) {
+                deltas.put(counter, counterDeltas);
+            }
+        });
+        if (windows.size() == capacity) {
+            windows.removeFirst();
+        }
+        windows.addLast(new Window(now - lastRollNanos, deltas));
+        lastRollNanos = now;
+    }
+
+    /**
+     * Drops all the windows and the last readings of the counters, which are going to be reset.
+     */
+    synchronized void clear() {
+        windows.clear();
+        lastCounts.clear();
+        lastRollNanos = System.nanoTime();
+    }
+
+    /**
+     * @return the duration of the latest window, in seconds
+     */
+    synchronized double latestWindowSecs() {
+        final Window latest = windows.peekLast();
+        return latest == null ? 0 : latest.durationNanos / 1_000_000_000d;
+    }
+
+    synchronized int size() {
+        return windows.size();
+    }
+
+    /**
+     * @return the rates of the classes with more than {@code minWindowCount} events in any window, ordered by
+     * their latest rate
+     */
+    synchronized List<ClassRates> orderedClassRates(int minWindowCount) {
+        final Window[] windows = this.windows.toArray(new Window[0]);
+        final Set<TraceInstanceOf.TraceCounter> windowedCounters = new HashSet<>();
+        for (Window window : windows) {
+            windowedCounters.addAll(window.deltas.keySet());
+        }
+        final List<ClassRates> classRates = new ArrayList<>(windowedCounters.size());
+        for (TraceInstanceOf.TraceCounter counter : windowedCounters) {
+            final double[] rates = new double[windows.length];
+            long maxWindowCount = 0;
+            for (int i = 0; i < windows.length; i++) {
+                final TraceDeltas deltas = windows[i].deltas.get(counter);
+                if (deltas != null) {
+                    rates[i] = windows[i].ratePerSecOf(deltas.total);
+                    maxWindowCount = Math.max(maxWindowCount, TypeCheckSampler.estimate(deltas.total));
+                }
+            }
+            if (maxWindowCount <= minWindowCount) {
+                continue;
+            }
+            // from each trace key to the (1-based) index of its rates
+            final TraceTable traceIndexes = new TraceTable();
+            final List<double[]> traceRates = new ArrayList<>();
+            for (int i = 0; i < windows.length; i++) {
+                final TraceDeltas deltas = windows[i].deltas.get(counter);
+                if (deltas == null) {
+                    continue;
+                }
+                for (int d = 0; d < deltas.size; d++) {
+                    long index = traceIndexes.get(deltas.keys[d]);
+                    if (index == 0) {
+                        traceRates.add(new double[windows.length]);
+                        index = traceRates.size();
+                        traceIndexes.put(deltas.keys[d], index);
+                    }
+                    traceRates.get((int) index - 1)[i] = windows[i].ratePerSecOf(deltas.deltas[d]);
+                }
+            }
+            final ClassRates.TraceRates[] traces = new ClassRates.TraceRates[traceRates.size()];
+            traceIndexes.forEach((traceKey, index) ->
+                    // resolve the trace and the interface just now, out of the hot path
+                    traces[(int) index - 1] = new ClassRates.TraceRates(
+                            CallSiteRegistry.trace(TraceInstanceOf.TraceCounter.siteOf(traceKey)),
+                            ClassInfo.byId(TraceInstanceOf.TraceCounter.interfaceIdOf(traceKey)).clazz,
+                            traceRates.get((int) index - 1)));
+            Arrays.sort(traces, Comparator.<ClassRates.TraceRates>comparingDouble(
+                    traceRate -> traceRate.rates[traceRate.rates.length - 1]).reversed());
+            classRates.add(new ClassRates(counter.clazz(), rates, traces));
+        }
+        classRates.sort(Comparator.comparingDouble(ClassRates::latestRate).reversed());
+        return classRates;
+    }
+}
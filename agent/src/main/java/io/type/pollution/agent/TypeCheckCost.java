@@ -0,0 +1,224 @@
+package io.type.pollution.agent;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Rough cost model of the type checks against interfaces taking the slow path, in CPU cycles.
+ * <p>
+ * The slow path linearly scans the secondary supers of the concrete class ({@link ClassInfo#secondarySupers}):
+ * <ul>
+ *     <li>a secondary super cache invalidation scans them up to the position of the checked interface, then
+ *     updates the cache, paying a cache line transfer if the previous update happened on another thread</li>
+ *     <li>a miss scans all of them, every time</li>
+ * </ul>
+ * The costs of the slow path call, of each scanned entry and of a cache line transfer can be configured, to match
+ * the target hardware.
+ */
+final class TypeCheckCost {
+
+    static final long SLOW_PATH_CYCLES = Long.getLong("io.type.pollution.cost.slow.path", 20);
+    static final long SCAN_CYCLES = Long.getLong("io.type.pollution.cost.scan", 2);
+    static final long CROSS_THREAD_CYCLES = Long.getLong("io.type.pollution.cost.cross.thread", 150);
+
+    /**
+     * The estimated cost of the checks of a concrete class against an interface, on a site.
+     */
+    static final class SiteCost {
+        final Class<?> clazz;
+        final Class<?> interfaceClazz;
+        final String trace;
+        // the 1-based position of the interface among the secondary supers of clazz or 0, if not there
+        final int position;
+        final int secondarySupers;
+        // see ReceiverProfiles#receiversOf
+        int receivers;
+        long invalidations;
+        long crossThreadInvalidations;
+        long misses;
+        // if any count is an upper bound, see TraceSnapshot.ClassCount#approximate
+        boolean approximate;
+
+        private SiteCost(Class<?> clazz, Class<?> interfaceClazz, String trace) {
+            this.clazz = clazz;
+            this.interfaceClazz = interfaceClazz;
+            this.trace = trace;
+            final Class<?>[] secondarySupers = ClassInfo.of(clazz).secondarySupers;
+            this.position = positionOf(secondarySupers, interfaceClazz);
+            this.secondarySupers = secondarySupers.length;
+        }
+
+        long cycles() {
+            return invalidationCycles(invalidations, crossThreadInvalidations, position) + missCycles(misses, secondarySupers);
+        }
+    }
+
+    /**
+     * The (estimated) count of a trace of a counter, see {@link TraceInstanceOf.TraceCounter#traceCounts()}.
+     */
+    static final class TraceCount {
+        final Class<?> interfaceClazz;
+        final int site;
+        final long count;
+        final long crossThreadCount;
+        // see TraceSnapshot.ClassCount#approximate
+        final boolean approximate;
+
+        TraceCount(Class<?> interfaceClazz, int site, long count, long crossThreadCount, boolean approximate) {
+            this.interfaceClazz = interfaceClazz;
+            this.site = site;
+            this.count = count;
+            this.crossThreadCount = crossThreadCount;
+            this.approximate = approximate;
+        }
+    }
+
+    static final class SiteKey {
+        final Class<?> clazz;
+        final Class<?> interfaceClazz;
+        final String trace;
+
+        private SiteKey(Class<?> clazz, Class<?> interfaceClazz, String trace) {
+            this.clazz = clazz;
+            this.interfaceClazz = interfaceClazz;
+            this.trace = trace;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof SiteKey)) {
+                return false;
+            }
+            final SiteKey siteKey = (SiteKey) o;
+            return clazz == siteKey.clazz && interfaceClazz == siteKey.interfaceClazz && trace.equals(siteKey.trace);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(clazz, interfaceClazz, trace);
+        }
+    }
+
+    private TypeCheckCost() {
+
+    }
+
+    private static int positionOf(Class<?>[] secondarySupers, Class<?> interfaceClazz) {
+        for (int i = 0; i < secondarySupers.length; i++) {
+            if (secondarySupers[i] == interfaceClazz) {
+                return i + 1;
+            }
+        }
+        return 0;
+    }
+
+    private static long invalidationCycles(long invalidations, long crossThreadInvalidations, int position) {
+        return invalidations * (SLOW_PATH_CYCLES + SCAN_CYCLES * position) + crossThreadInvalidations * CROSS_THREAD_CYCLES;
+    }
+
+    private static long missCycles(long misses, int secondarySupers) {
+        return misses * (SLOW_PATH_CYCLES + SCAN_CYCLES * secondarySupers);
+    }
+
+    /**
+     * @return the estimated cycles lost by the type checks of a counter snapshot
+     */
+    static long cyclesOf(TraceInstanceOf.TraceCounter.Snapshot counter, boolean miss) {
+        final Class<?>[] secondarySupers = ClassInfo.of(counter.clazz).secondarySupers;
+        long cycles = 0;
+        for (TraceInstanceOf.TraceCounter.Snapshot.TraceSnapshot trace : counter.traces) {
+            for (TraceInstanceOf.TraceCounter.Snapshot.TraceSnapshot.ClassCount count : trace.interfaceSeenCounters) {
+                cycles += miss ? missCycles(count.count, secondarySupers.length) :
+                        invalidationCycles(count.count, count.crossThreadCount, positionOf(secondarySupers, count.interfaceClazz));
+            }
+        }
+        return cycles;
+    }
+
+    /**
+     * @return the counter snapshots, ordered by descending estimated cycles lost
+     */
+    static List<TraceInstanceOf.TraceCounter.Snapshot> orderedByCycles(Collection<TraceInstanceOf.TraceCounter.Snapshot> counters,
+                                                                        boolean miss) {
+        final Map<TraceInstanceOf.TraceCounter.Snapshot, Long> cycles = new HashMap<>(counters.size());
+        for (TraceInstanceOf.TraceCounter.Snapshot counter : counters) {
+            cycles.put(counter, cyclesOf(counter, miss));
+        }
+        final List<TraceInstanceOf.TraceCounter.Snapshot> ordered = new ArrayList<>(counters);
+        ordered.sort(Comparator.<TraceInstanceOf.TraceCounter.Snapshot>comparingLong(cycles::get).reversed());
+        return ordered;
+    }
+
+    private static void addSiteCosts(Map<SiteKey, SiteCost> sites, Collection<TraceInstanceOf.TraceCounter.Snapshot> counters,
+                                     boolean miss) {
+        for (TraceInstanceOf.TraceCounter.Snapshot counter : counters) {
+            for (TraceInstanceOf.TraceCounter.Snapshot.TraceSnapshot trace : counter.traces) {
+                for (TraceInstanceOf.TraceCounter.Snapshot.TraceSnapshot.ClassCount count : trace.interfaceSeenCounters) {
+                    final SiteKey key = new SiteKey(counter.clazz, count.interfaceClazz, trace.trace);
+                    final SiteCost site = sites.computeIfAbsent(key, k -> new SiteCost(k.clazz, k.interfaceClazz, k.trace));
+                    if (miss) {
+                        site.misses += count.count;
+                    } else {
+                        site.invalidations += count.count;
+                        site.crossThreadInvalidations += count.crossThreadCount;
+                    }
+                    site.approximate |= count.approximate;
+                    site.receivers = trace.receivers;
+                }
+            }
+        }
+    }
+
+    /**
+     * Merges the trace counts of a counter into {@code sites}, see {@link TraceInstanceOf#siteCosts()}.
+     */
+    static void addSiteCosts(Map<SiteKey, SiteCost> sites, Class<?> clazz, TraceCount[] traceCounts, boolean miss) {
+        for (TraceCount count : traceCounts) {
+            final String trace = CallSiteRegistry.trace(count.site);
+            final SiteCost site = sites.computeIfAbsent(new SiteKey(clazz, count.interfaceClazz, trace),
+                    k -> new SiteCost(k.clazz, k.interfaceClazz, k.trace));
+            if (miss) {
+                site.misses += count.count;
+            } else {
+                site.invalidations += count.count;
+                site.crossThreadInvalidations += count.crossThreadCount;
+            }
+            site.approximate |= count.approximate;
+            site.receivers = ReceiverProfiles.receiversOf(count.site);
+        }
+    }
+
+    /**
+     * Merges the invalidations and the misses of the same concrete class, interface and site.
+     */
+    static Collection<SiteCost> siteCostsOf(Collection<TraceInstanceOf.TraceCounter.Snapshot> typePollutionCounters,
+                                            Collection<TraceInstanceOf.TraceCounter.Snapshot> missCounters) {
+        final Map<SiteKey, SiteCost> sites = new HashMap<>();
+        addSiteCosts(sites, typePollutionCounters, false);
+        addSiteCosts(sites, missCounters, true);
+        return sites.values();
+    }
+
+    /**
+     * @return up to {@code limit} sites with at least {@code minReceivers} receivers, ordered by descending estimated
+     * cycles lost
+     */
+    static List<SiteCost> orderedSiteCosts(Collection<SiteCost> siteCosts, int minReceivers, int limit) {
+        final List<SiteCost> ordered = new ArrayList<>(siteCosts.size());
+        for (SiteCost site : siteCosts) {
+            if (site.receivers >= minReceivers) {
+                ordered.add(site);
+            }
+        }
+        ordered.sort(Comparator.comparingLong(SiteCost::cycles).reversed());
+        return ordered.subList(0, Math.min(ordered.size(), Math.max(0, limit)));
+    }
+}
@@ -0,0 +1,47 @@
+package io.type.pollution.agent;
+
+/**
+ * The (estimated, if sampling) count of a class or of a site, as exposed by {@link TypePollutionMXBean}.
+ */
+public final class TypeCheckCount {
+
+    private final String concreteClass;
+    private final String interfaceClass;
+    private final String site;
+    private final long count;
+    private final long crossThreadCount;
+
+    TypeCheckCount(String concreteClass, String interfaceClass, String site, long count, long crossThreadCount) {
+        this.concreteClass = concreteClass;
+        this.interfaceClass = interfaceClass;
+        this.site = site;
+        this.count = count;
+        this.crossThreadCount = crossThreadCount;
+    }
+
+    public String getConcreteClass() {
+        return concreteClass;
+    }
+
+    /**
+     * @return the checked interface or {@code null} for a class count
+     */
+    public String getInterfaceClass() {
+        return interfaceClass;
+    }
+
+    /**
+     * @return the site or {@code null} for a class count
+     */
+    public String getSite() {
+        return site;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getCrossThreadCount() {
+        return crossThreadCount;
+    }
+}
@@ -0,0 +1,40 @@
+package io.type.pollution.agent;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.StackTrace;
+
+/**
+ * The cumulative count of a trace of the {@link TraceInstanceOf} counters, committed periodically.
+ */
+@Name("io.type.pollution.TypeCheckCount")
+@Label("Type Check Count")
+@Category("Type Pollution")
+@Description("The cumulative (estimated, if sampling) count of the secondary super cache invalidations or the failed type checks of a trace")
+@Period("10 s")
+@StackTrace(false)
+final class TypeCheckCountEvent extends jdk.jfr.Event {
+
+    @Label("Concrete Class")
+    Class<?> concreteClass;
+
+    @Label("Interface")
+    Class<?> interfaceClass;
+
+    @Label("Site")
+    String site;
+
+    @Label("Hit")
+    @Description("true if counting the secondary super cache invalidations, false if the failed type checks")
+    boolean hit;
+
+    @Label("Count")
+    long count;
+
+    @Label("Cross-thread Count")
+    @Description("The part of count happened on a different thread from the previous invalidation")
+    long crossThreadCount;
+}
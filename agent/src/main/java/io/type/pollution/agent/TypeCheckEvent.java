@@ -0,0 +1,36 @@
+package io.type.pollution.agent;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A (throttled) secondary super cache invalidation or type check miss, committed by the application thread which has
+ * performed the type check.
+ */
+@Name("io.type.pollution.TypeCheck")
+@Label("Type Check")
+@Category("Type Pollution")
+@Description("A secondary super cache invalidation (hit) or a failed type check against an interface (miss)")
+@StackTrace(false)
+final class TypeCheckEvent extends jdk.jfr.Event {
+
+    @Label("Concrete Class")
+    Class<?> concreteClass;
+
+    @Label("Interface")
+    Class<?> interfaceClass;
+
+    @Label("Site")
+    String site;
+
+    @Label("Hit")
+    @Description("true if the type check has invalidated the secondary super cache, false if it has failed")
+    boolean hit;
+
+    @Label("Previous Thread")
+    @Description("The thread which has performed the previous invalidation, if different from the current one")
+    Thread previousThread;
+}
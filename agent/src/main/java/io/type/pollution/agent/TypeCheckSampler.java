@@ -0,0 +1,55 @@
+package io.type.pollution.agent;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Per-thread 1-in-N sampling of the recorded events (ie the invalidations and the misses), based on a countdown
+ * which is reset with a random jitter (uniform in {@code [1, 2N - 1]}, ie N on average) to not be in lockstep with
+ * any periodic behaviour of the application.
+ * <p>
+ * The events are still detected on every type check (eg an invalidation by comparing each check with the last seen
+ * interface), so the sampled counts are scaled back by N, to estimate the real ones.
+ */
+final class TypeCheckSampler {
+
+    private static final ThreadLocal<TypeCheckSampler> SAMPLER = ThreadLocal.withInitial(TypeCheckSampler::new);
+
+    private int countdown;
+
+    private TypeCheckSampler() {
+        countdown = nextCountdown(Agent.SAMPLING_PERIOD);
+    }
+
+    private static int nextCountdown(int period) {
+        return 1 + ThreadLocalRandom.current().nextInt(2 * period - 1);
+    }
+
+    static boolean isEnabled() {
+        return Agent.SAMPLING_PERIOD > 1;
+    }
+
+    static boolean sample() {
+        if (!isEnabled()) {
+            return true;
+        }
+        final TypeCheckSampler sampler = SAMPLER.get();
+        if (--sampler.countdown > 0) {
+            return false;
+        }
+        sampler.countdown = nextCountdown(Agent.SAMPLING_PERIOD);
+        return true;
+    }
+
+    static long estimate(long samples) {
+        return samples * Agent.SAMPLING_PERIOD;
+    }
+
+    /**
+     * @return the half-width of the 95% confidence interval of {@link #estimate(long)}, given {@code samples}
+     */
+    static long confidence95(long samples) {
+        final long period = Agent.SAMPLING_PERIOD;
+        // each type check is sampled with p = 1/N: Var(N * samples) ~= N * (N - 1) * samples
+        return (long) Math.ceil(1.96 * Math.sqrt((double) period * (period - 1) * samples));
+    }
+}
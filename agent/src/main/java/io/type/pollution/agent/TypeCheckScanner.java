@@ -0,0 +1,504 @@
+package io.type.pollution.agent;
+
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.dynamic.ClassFileLocator;
+import net.bytebuddy.jar.asm.ClassReader;
+import net.bytebuddy.jar.asm.ClassVisitor;
+import net.bytebuddy.jar.asm.Handle;
+import net.bytebuddy.jar.asm.MethodVisitor;
+import net.bytebuddy.jar.asm.Opcodes;
+import net.bytebuddy.jar.asm.Type;
+import net.bytebuddy.pool.TypePool;
+import net.bytebuddy.utility.OpenedClassReader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.stream.Stream;
+
+/**
+ * Offline scan of jars and class directories for the type checks which could pollute the secondary super cache,
+ * without running the application.
+ * <p>
+ * The class files are parsed in parallel by a {@link ForkJoinPool}, through the same
+ * {@link ByteBuddyUtils.ByteBuddyTypePollutionClassVisitor} used by the agent: the probes it emits are recorded
+ * instead of being written, hence the scanned sites (and traces) are exactly the instrumented ones. Then, the
+ * interfaces implemented by each concrete class are computed in parallel too, and a site checking an interface is a
+ * candidate if some concrete classes implementing it also implement other interfaces checked elsewhere: the same
+ * instances checked against different interfaces keep invalidating the cache of their class.
+ * <p>
+ * The concrete classes are just the scanned ones: the JDK (or any other not scanned) types are used to resolve the
+ * interfaces of the scanned classes, but their own implementors are never considered.
+ */
+final class TypeCheckScanner {
+
+    private static final int SPLIT_THRESHOLD = 64;
+    private static final String TRACE_INSTANCE_OF = Type.getInternalName(TraceInstanceOf.class);
+
+    private static final class ClassHeader {
+        final String name;
+        final String superName;
+        final String[] interfaces;
+        final boolean concrete;
+
+        private ClassHeader(String name, String superName, String[] interfaces, boolean concrete) {
+            this.name = name;
+            this.superName = superName;
+            this.interfaces = interfaces == null ? new String[0] : interfaces;
+            this.concrete = concrete;
+        }
+    }
+
+    /**
+     * A type check site, as instrumented by the agent.
+     */
+    static final class Site {
+        final String trace;
+        final String kind;
+        // internal name
+        final String checked;
+
+        private Site(String trace, String kind, String checked) {
+            this.trace = trace;
+            this.kind = kind;
+            this.checked = checked;
+        }
+
+        private String key() {
+            return trace + '|' + kind + '|' + checked;
+        }
+    }
+
+    /**
+     * A site checking an interface implemented by concrete classes also checked against other interfaces.
+     */
+    static final class Candidate {
+        final Site site;
+        // concrete class -> the other checked interfaces it implements
+        final Map<String, Set<String>> atRisk;
+        final long score;
+
+        private Candidate(Site site, Map<String, Set<String>> atRisk) {
+            this.site = site;
+            this.atRisk = atRisk;
+            long score = 0;
+            for (Set<String> others : atRisk.values()) {
+                score += others.size();
+            }
+            this.score = score;
+        }
+    }
+
+    private final TypePool typePool;
+    private final List<JarFile> jars = new ArrayList<>();
+    private final List<ClassFileSource> classFiles = new ArrayList<>();
+    private final ConcurrentHashMap<String, ClassHeader> headers = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Site> sites = new ConcurrentLinkedQueue<>();
+    private final ConcurrentHashMap<String, Set<String>> interfaces = new ConcurrentHashMap<>();
+    private final AtomicLong unresolvedSites = new AtomicLong();
+    private final AtomicLong failedClasses = new AtomicLong();
+
+    private static final class ClassFileSource {
+        final JarFile jar;
+        final JarEntry entry;
+        final Path path;
+
+        private ClassFileSource(JarFile jar, JarEntry entry, Path path) {
+            this.jar = jar;
+            this.entry = entry;
+            this.path = path;
+        }
+
+        byte[] read() throws IOException {
+            if (path != null) {
+                return Files.readAllBytes(path);
+            }
+            try (InputStream in = jar.getInputStream(entry)) {
+                return in.readAllBytes();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return path != null ? path.toString() : jar.getName() + "!/" + entry.getName();
+        }
+    }
+
+    private static final class ForEach<T> extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<T> items;
+        private final int from;
+        private final int to;
+        private final Consumer<T> action;
+
+        private ForEach(List<T> items, int from, int to, Consumer<T> action) {
+            this.items = items;
+            this.from = from;
+            this.to = to;
+            this.action = action;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= SPLIT_THRESHOLD) {
+                for (int i = from; i < to; i++) {
+                    action.accept(items.get(i));
+                }
+                return;
+            }
+            final int middle = (from + to) >>> 1;
+            invokeAll(new ForEach<>(items, from, middle, action), new ForEach<>(items, middle, to, action));
+        }
+    }
+
+    TypeCheckScanner(List<Path> paths) throws IOException {
+        final List<ClassFileLocator> locators = new ArrayList<>(paths.size() + 1);
+        for (Path path : paths) {
+            if (Files.isDirectory(path)) {
+                locators.add(new ClassFileLocator.ForFolder(path.toFile()));
+                try (Stream<Path> files = Files.walk(path)) {
+                    files.filter(file -> isClassFile(path.relativize(file).toString().replace('\\', '/')) && Files.isRegularFile(file))
+                            .forEach(file -> classFiles.add(new ClassFileSource(null, null, file)));
+                }
+            } else {
+                final JarFile jar = new JarFile(path.toFile());
+                jars.add(jar);
+                locators.add(new ClassFileLocator.ForJarFile(jar));
+                for (JarEntry entry : Collections.list(jar.entries())) {
+                    if (!entry.isDirectory() && isClassFile(entry.getName())) {
+                        classFiles.add(new ClassFileSource(jar, entry, null));
+                    }
+                }
+            }
+        }
+        // to resolve the JDK types too
+        locators.add(ClassFileLocator.ForClassLoader.ofSystemLoader());
+        typePool = TypePool.Default.of(new ClassFileLocator.Compound(locators));
+    }
+
+    private static boolean isClassFile(String name) {
+        return name.endsWith(".class") && !name.startsWith("META-INF/")
+                && !name.endsWith("module-info.class") && !name.endsWith("package-info.class");
+    }
+
+    /**
+     * Records the class header and the probes emitted by {@link ByteBuddyUtils.ByteBuddyTypePollutionInstructionAdapter}.
+     */
+    private final class Recorder extends ClassVisitor {
+
+        private Recorder() {
+            super(Opcodes.ASM9);
+        }
+
+        @Override
+        public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+            final boolean concrete = (access & (Opcodes.ACC_INTERFACE | Opcodes.ACC_ABSTRACT)) == 0;
+            headers.put(name, new ClassHeader(name, superName, interfaces, concrete));
+        }
+
+        @Override
+        public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+            return new MethodVisitor(Opcodes.ASM9) {
+
+                // the last class constant loaded: the target of a Class::isInstance, Class::cast etc. if it
+                // was loaded right before the checked instance
+                private Type pendingClass;
+                private int pendingSite;
+
+                private void clear() {
+                    pendingClass = null;
+                    pendingSite = 0;
+                }
+
+                private void record(int site, String kind, Type checked) {
+                    final String trace = CallSiteRegistry.trace(site);
+                    if (trace == null) {
+                        return;
+                    }
+                    if (checked != null && checked.getSort() == Type.ARRAY) {
+                        // the checks against arrays of interfaces are not modelled by the class hierarchy
+                        return;
+                    }
+                    if (checked == null || checked.getSort() != Type.OBJECT) {
+                        unresolvedSites.incrementAndGet();
+                        return;
+                    }
+                    sites.add(new Site(trace, kind, checked.getInternalName()));
+                }
+
+                @Override
+                public void visitInvokeDynamicInsn(String name, String descriptor, Handle bootstrapMethodHandle, Object... bootstrapMethodArguments) {
+                    if (ByteBuddyUtils.TYPE_CHECK_BOOTSTRAP.equals(bootstrapMethodHandle)) {
+                        record((Integer) bootstrapMethodArguments[1], name, (Type) bootstrapMethodArguments[0]);
+                    } else if (ByteBuddyUtils.CLASS_CHECK_BOOTSTRAP.equals(bootstrapMethodHandle)) {
+                        record((Integer) bootstrapMethodArguments[0], name, pendingClass);
+                    } else if (ByteBuddyUtils.SWITCH_CHECK_BOOTSTRAP.equals(bootstrapMethodHandle)) {
+                        for (int i = 2; i < bootstrapMethodArguments.length; i += 2) {
+                            record((Integer) bootstrapMethodArguments[0], name, (Type) bootstrapMethodArguments[i]);
+                        }
+                    }
+                    clear();
+                }
+
+                @Override
+                public void visitMethodInsn(int opcode, String owner, String name, String descriptor, boolean isInterface) {
+                    if (opcode == Opcodes.INVOKESTATIC && TRACE_INSTANCE_OF.equals(owner) && "traceAastore".equals(name)) {
+                        // the array component type is known at runtime only
+                        clear();
+                    } else if (opcode == Opcodes.INVOKESTATIC && TRACE_INSTANCE_OF.equals(owner) && name.startsWith("trace") && pendingSite > 0) {
+                        // pre Java 7 class files: the checked type (if any) and the site are loaded as constants
+                        final String kind = Character.toLowerCase(name.charAt("trace".length())) + name.substring("trace".length() + 1);
+                        record(pendingSite, kind, pendingClass);
+                        clear();
+                    } else if (opcode != Opcodes.INVOKEVIRTUAL || !("java/lang/Class".equals(owner) || "getClass".equals(name))) {
+                        // Class::cast and Class::isAssignableFrom are still called, around their probes, and the
+                        // latter is usually passed an Object::getClass
+                        clear();
+                    }
+                }
+
+                @Override
+                public void visitLdcInsn(Object value) {
+                    if (value instanceof Type && ((Type) value).getSort() != Type.METHOD) {
+                        pendingClass = (Type) value;
+                        pendingSite = 0;
+                    } else if (value instanceof Integer && pendingSite == 0) {
+                        pendingSite = (Integer) value;
+                    } else {
+                        clear();
+                    }
+                }
+
+                @Override
+                public void visitVarInsn(int opcode, int var) {
+                    if (opcode != Opcodes.ALOAD) {
+                        clear();
+                    }
+                }
+
+                @Override
+                public void visitInsn(int opcode) {
+                    if (opcode != Opcodes.DUP && opcode != Opcodes.DUP2) {
+                        clear();
+                    }
+                }
+
+                @Override
+                public void visitIntInsn(int opcode, int operand) {
+                    clear();
+                }
+
+                @Override
+                public void visitTypeInsn(int opcode, String type) {
+                    clear();
+                }
+
+                @Override
+                public void visitFieldInsn(int opcode, String owner, String name, String descriptor) {
+                    clear();
+                }
+
+                @Override
+                public void visitJumpInsn(int opcode, net.bytebuddy.jar.asm.Label label) {
+                    clear();
+                }
+
+                @Override
+                public void visitLabel(net.bytebuddy.jar.asm.Label label) {
+                    clear();
+                }
+            };
+        }
+    }
+
+    private void parse(ClassFileSource classFile) {
+        try {
+            final ClassReader reader = OpenedClassReader.of(classFile.read());
+            reader.accept(new ByteBuddyUtils.ByteBuddyTypePollutionClassVisitor(Opcodes.ASM9, new Recorder(), typePool),
+                    ClassReader.SKIP_FRAMES);
+        } catch (Throwable t) {
+            if (failedClasses.getAndIncrement() == 0) {
+                System.err.println("WARNING cannot scan " + classFile + " due to: " + t);
+            }
+        }
+    }
+
+    private ClassHeader headerOf(String name) {
+        final ClassHeader header = headers.get(name);
+        if (header != null) {
+            return header;
+        }
+        try {
+            final TypePool.Resolution resolution = typePool.describe(name.replace('/', '.'));
+            if (!resolution.isResolved()) {
+                return null;
+            }
+            final TypeDescription type = resolution.resolve();
+            final TypeDescription.Generic superClass = type.getSuperClass();
+            final List<TypeDescription> superInterfaces = type.getInterfaces().asErasures();
+            final String[] interfaces = new String[superInterfaces.size()];
+            for (int i = 0; i < interfaces.length; i++) {
+                interfaces[i] = superInterfaces.get(i).getInternalName();
+            }
+            return new ClassHeader(name, superClass == null ? null : superClass.asErasure().getInternalName(), interfaces, false);
+        } catch (Throwable t) {
+            return null;
+        }
+    }
+
+    /**
+     * @return all the interfaces implemented by {@code name}, directly or not
+     */
+    private Set<String> interfacesOf(String name) {
+        final Set<String> memo = interfaces.get(name);
+        if (memo != null) {
+            return memo;
+        }
+        final Set<String> all = new HashSet<>();
+        final ClassHeader header = headerOf(name);
+        if (header != null) {
+            if (header.superName != null) {
+                all.addAll(interfacesOf(header.superName));
+            }
+            for (String superInterface : header.interfaces) {
+                all.add(superInterface);
+                all.addAll(interfacesOf(superInterface));
+            }
+        }
+        final Set<String> existing = interfaces.putIfAbsent(name, all);
+        return existing != null ? existing : all;
+    }
+
+    /**
+     * @return the candidate sites, ordered by descending score
+     */
+    List<Candidate> scan(ForkJoinPool pool) {
+        pool.invoke(new ForEach<>(classFiles, 0, classFiles.size(), this::parse));
+        final Map<String, Site> uniqueSites = new LinkedHashMap<>();
+        for (Site site : sites) {
+            uniqueSites.putIfAbsent(site.key(), site);
+        }
+        final Set<String> checked = new HashSet<>();
+        for (Site site : uniqueSites.values()) {
+            checked.add(site.checked);
+        }
+        final List<ClassHeader> concreteClasses = new ArrayList<>();
+        for (ClassHeader header : headers.values()) {
+            if (header.concrete) {
+                concreteClasses.add(header);
+            }
+        }
+        // checked interface -> its concrete implementors which implement other checked interfaces too
+        final ConcurrentHashMap<String, ConcurrentLinkedQueue<String>> implementors = new ConcurrentHashMap<>();
+        // concrete class -> the checked interfaces it implements
+        final ConcurrentHashMap<String, Set<String>> checkedInterfaces = new ConcurrentHashMap<>();
+        pool.invoke(new ForEach<>(concreteClasses, 0, concreteClasses.size(), header -> {
+            final Set<String> implemented = new TreeSet<>();
+            for (String anInterface : interfacesOf(header.name)) {
+                if (checked.contains(anInterface)) {
+                    implemented.add(anInterface);
+                }
+            }
+            // a single checked interface cannot invalidate the cache of its implementors
+            if (implemented.size() < 2) {
+                return;
+            }
+            checkedInterfaces.put(header.name, implemented);
+            for (String anInterface : implemented) {
+                implementors.computeIfAbsent(anInterface, k -> new ConcurrentLinkedQueue<>()).add(header.name);
+            }
+        }));
+        final List<Site> checkSites = new ArrayList<>(uniqueSites.values());
+        final ConcurrentLinkedQueue<Candidate> candidates = new ConcurrentLinkedQueue<>();
+        pool.invoke(new ForEach<>(checkSites, 0, checkSites.size(), site -> {
+            final ConcurrentLinkedQueue<String> siteImplementors = implementors.get(site.checked);
+            if (siteImplementors == null) {
+                return;
+            }
+            final List<String> atRiskClasses = new ArrayList<>(siteImplementors);
+            Collections.sort(atRiskClasses);
+            final Map<String, Set<String>> atRisk = new LinkedHashMap<>();
+            for (String atRiskClass : atRiskClasses) {
+                final Set<String> others = new TreeSet<>(checkedInterfaces.get(atRiskClass));
+                others.remove(site.checked);
+                atRisk.put(atRiskClass, others);
+            }
+            candidates.add(new Candidate(site, atRisk));
+        }));
+        final List<Candidate> ordered = new ArrayList<>(candidates);
+        ordered.sort(Comparator.<Candidate>comparingLong(candidate -> candidate.score).reversed()
+                .thenComparing(Comparator.<Candidate>comparingInt(candidate -> candidate.atRisk.size()).reversed())
+                .thenComparing(candidate -> candidate.site.key()));
+        return ordered;
+    }
+
+    int classes() {
+        return headers.size();
+    }
+
+    long failedClasses() {
+        return failedClasses.get();
+    }
+
+    long unresolvedSites() {
+        return unresolvedSites.get();
+    }
+
+    void close() {
+        for (JarFile jar : jars) {
+            try {
+                jar.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+        }
+    }
+
+    private static String classNameOf(String internalName) {
+        return internalName.replace('/', '.');
+    }
+
+    static void print(TypeCheckScanner scanner, List<Candidate> candidates, int limit, PrintWriter out) {
+        out.print("--------------------------\nType Pollution Candidates:\n--------------------------\n");
+        out.print("Classes:\t" + scanner.classes() + " scanned" + (scanner.failedClasses() > 0 ? ", " + scanner.failedClasses() + " failed" : "") + '\n');
+        out.print("Sites:\t" + ByteBuddyUtils.instrumentedSites() + " instrumented, " + ByteBuddyUtils.skippedSites()
+                + " skipped (cannot pollute), " + scanner.unresolvedSites() + " unresolved (not checking a class constant)\n");
+        final int top = limit > 0 ? Math.min(limit, candidates.size()) : candidates.size();
+        for (int i = 0; i < top; i++) {
+            final Candidate candidate = candidates.get(i);
+            out.print("--------------------------\n");
+            out.print((i + 1) + ":\t" + candidate.site.trace + '\n');
+            out.print("Check:\t" + candidate.site.kind + " " + classNameOf(candidate.site.checked) + '\n');
+            out.print("Score:\t" + candidate.score + '\n');
+            out.print("Types:\n");
+            for (Map.Entry<String, Set<String>> atRisk : candidate.atRisk.entrySet()) {
+                final StringBuilder others = new StringBuilder();
+                for (String other : atRisk.getValue()) {
+                    others.append(others.length() > 0 ? ", " : "").append(classNameOf(other));
+                }
+                out.print("\t" + classNameOf(atRisk.getKey()) + " (also checked as: " + others + ")\n");
+            }
+        }
+        out.print("--------------------------\n");
+    }
+}
@@ -0,0 +1,62 @@
+package io.type.pollution.agent;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Site-centric view of the type checks: the invalidations and the misses of a site, across all the concrete classes
+ * checked there, with the breakdown per concrete class and interface.
+ * <p>
+ * It is built by grouping the {@link TypeCheckCost.SiteCost}s of the report snapshots, without reading the counters
+ * again.
+ */
+final class TypeCheckSite {
+
+    final String trace;
+    // the method containing the site, ie its trace without the source location
+    final String method;
+    // see ReceiverProfiles#receiversOf
+    int receivers;
+    long invalidations;
+    long crossThreadInvalidations;
+    long misses;
+    long cycles;
+    boolean approximate;
+    // ordered by descending estimated cycles lost
+    final List<TypeCheckCost.SiteCost> checks = new ArrayList<>(1);
+
+    private TypeCheckSite(String trace) {
+        this.trace = trace;
+        final int location = trace.indexOf('(');
+        this.method = location < 0 ? trace : trace.substring(0, location);
+    }
+
+    /**
+     * @return up to {@code limit} sites, ordered by descending estimated cycles lost, if {@code byCycles}, or
+     * invalidations and misses
+     */
+    static List<TypeCheckSite> orderedSites(Collection<TypeCheckCost.SiteCost> siteCosts, boolean byCycles, int limit) {
+        final Map<String, TypeCheckSite> sites = new HashMap<>();
+        for (TypeCheckCost.SiteCost check : siteCosts) {
+            final TypeCheckSite site = sites.computeIfAbsent(check.trace, TypeCheckSite::new);
+            site.receivers = check.receivers;
+            site.invalidations += check.invalidations;
+            site.crossThreadInvalidations += check.crossThreadInvalidations;
+            site.misses += check.misses;
+            site.cycles += check.cycles();
+            site.approximate |= check.approximate;
+            site.checks.add(check);
+        }
+        final List<TypeCheckSite> ordered = new ArrayList<>(sites.values());
+        ordered.sort(Comparator.<TypeCheckSite>comparingLong(site -> byCycles ? site.cycles : site.invalidations + site.misses).reversed());
+        final List<TypeCheckSite> top = ordered.subList(0, Math.min(ordered.size(), Math.max(0, limit)));
+        for (TypeCheckSite site : top) {
+            site.checks.sort(Comparator.comparingLong(TypeCheckCost.SiteCost::cycles).reversed());
+        }
+        return top;
+    }
+}
@@ -0,0 +1,57 @@
+package io.type.pollution.agent;
+
+/**
+ * Management interface of the agent, registered on the platform MBean server as {@link #OBJECT_NAME} if
+ * {@code io.type.pollution.jmx} is {@code true}.
+ */
+public interface TypePollutionMXBean {
+
+    String OBJECT_NAME = "io.type.pollution:type=TypePollution";
+
+    boolean isTracing();
+
+    /**
+     * Resumes tracing, relinking the probes.
+     */
+    void startTracing();
+
+    /**
+     * Pauses tracing, relinking the probes as the original type checks.
+     */
+    void stopTracing();
+
+    /**
+     * Resets all the counters.
+     */
+    void reset();
+
+    int getCountMin();
+
+    void setCountMin(int countMin);
+
+    int getMissCountMin();
+
+    void setMissCountMin(int missCountMin);
+
+    /**
+     * @return the classes with the most secondary super cache invalidations, over {@link #getCountMin()}
+     */
+    TypeCheckCount[] topTypePollutionClasses(int limit);
+
+    /**
+     * @return the classes with the most failed type checks against interfaces, over {@link #getMissCountMin()}
+     */
+    TypeCheckCount[] topMissClasses(int limit);
+
+    /**
+     * @return the sites (per checked interface) with the most secondary super cache invalidations, of the classes
+     * over {@link #getCountMin()}
+     */
+    TypeCheckCount[] topTypePollutionSites(int limit);
+
+    /**
+     * @return the sites (per checked interface) with the most failed type checks against interfaces, of the classes
+     * over {@link #getMissCountMin()}
+     */
+    TypeCheckCount[] topMissSites(int limit);
+}
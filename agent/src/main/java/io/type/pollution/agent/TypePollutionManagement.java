@@ -0,0 +1,111 @@
+package io.type.pollution.agent;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+final class TypePollutionManagement implements TypePollutionMXBean {
+
+    private TypePollutionManagement() {
+
+    }
+
+    static void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer()
+                    .registerMBean(new TypePollutionManagement(), new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            System.err.println("ERROR while registering the Type Pollution MBean due to: " + e);
+        }
+    }
+
+    @Override
+    public boolean isTracing() {
+        return TraceBootstraps.isTracing();
+    }
+
+    @Override
+    public void startTracing() {
+        TraceInstanceOf.startTracing(0);
+    }
+
+    @Override
+    public void stopTracing() {
+        TraceInstanceOf.stopTracing();
+    }
+
+    @Override
+    public void reset() {
+        Agent.resetCounters();
+    }
+
+    @Override
+    public int getCountMin() {
+        return Agent.typeUpdateCountMin();
+    }
+
+    @Override
+    public void setCountMin(int countMin) {
+        Agent.typeUpdateCountMin(countMin);
+    }
+
+    @Override
+    public int getMissCountMin() {
+        return Agent.typeMissCountMin();
+    }
+
+    @Override
+    public void setMissCountMin(int missCountMin) {
+        Agent.typeMissCountMin(missCountMin);
+    }
+
+    private static TypeCheckCount[] topClassesOf(Collection<TraceInstanceOf.TraceCounter.Snapshot> counters, int limit) {
+        final List<TypeCheckCount> classes = new ArrayList<>(Math.min(counters.size(), Math.max(0, limit)));
+        for (TraceInstanceOf.TraceCounter.Snapshot counter : counters) {
+            if (classes.size() >= limit) {
+                break;
+            }
+            classes.add(new TypeCheckCount(counter.clazz.getName(), null, null,
+                    counter.updateCount, counter.crossThreadUpdateCount));
+        }
+        return classes.toArray(new TypeCheckCount[0]);
+    }
+
+    private static TypeCheckCount[] topSitesOf(Collection<TraceInstanceOf.TraceCounter.Snapshot> counters, int limit) {
+        final List<TypeCheckCount> sites = new ArrayList<>();
+        for (TraceInstanceOf.TraceCounter.Snapshot counter : counters) {
+            for (TraceInstanceOf.TraceCounter.Snapshot.TraceSnapshot trace : counter.traces) {
+                for (TraceInstanceOf.TraceCounter.Snapshot.TraceSnapshot.ClassCount count : trace.interfaceSeenCounters) {
+                    sites.add(new TypeCheckCount(counter.clazz.getName(), count.interfaceClazz.getName(), trace.trace,
+                            count.count, count.crossThreadCount));
+                }
+            }
+        }
+        sites.sort(Comparator.comparingLong(TypeCheckCount::getCount).reversed());
+        return sites.subList(0, Math.min(sites.size(), Math.max(0, limit))).toArray(new TypeCheckCount[0]);
+    }
+
+    @Override
+    public TypeCheckCount[] topTypePollutionClasses(int limit) {
+        return topClassesOf(TraceInstanceOf.orderedTypePollutionCountersSnapshot(Agent.typeUpdateCountMin(), Math.max(0, limit)), limit);
+    }
+
+    @Override
+    public TypeCheckCount[] topMissClasses(int limit) {
+        return topClassesOf(TraceInstanceOf.orderedMissCountersSnapshot(Agent.typeMissCountMin(), Math.max(0, limit)), limit);
+    }
+
+    @Override
+    public TypeCheckCount[] topTypePollutionSites(int limit) {
+        return topSitesOf(TraceInstanceOf.orderedTypePollutionCountersSnapshot(Agent.typeUpdateCountMin()), limit);
+    }
+
+    @Override
+    public TypeCheckCount[] topMissSites(int limit) {
+        return topSitesOf(TraceInstanceOf.orderedMissCountersSnapshot(Agent.typeMissCountMin()), limit);
+    }
+}